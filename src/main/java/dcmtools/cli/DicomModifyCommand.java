@@ -1,11 +1,17 @@
 package dcmtools.cli;
 
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 import dcmtools.data.AttributeSpec;
 import dcmtools.data.DicomModify;
+import dcmtools.data.EditPlan;
+import dcmtools.data.EditResult;
+import dcmtools.util.DicomFileIndex;
 import dcmtools.util.DicomFiles;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -30,6 +36,26 @@ public class DicomModifyCommand implements Callable<Integer> {
     @Option(names = { "-b", "--backup" }, required = false, description = "keep the original file as backup.")
     private boolean backup;
 
+    @Option(names = {
+            "--in-place" }, required = false, description = "overwrite the values in the files when the edits do not change their encoded lengths, instead of rewriting the files. Other edits are applied by rewriting the files. Ignored if --backup is specified.")
+    private boolean inPlace;
+
+    @Option(names = {
+            "--scan-threads" }, description = "number of threads to scan the input directories in parallel. Defaults to 1.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "1")
+    private int scanThreads;
+
+    @Option(names = {
+            "--scan-index" }, description = "index file to cache the scanned DICOM file headers. Only new or modified files are parsed on subsequent runs. It is created if it does not exist.", required = false, paramLabel = "<file>")
+    private Path scanIndex;
+
+    @Option(names = {
+            "--threads" }, description = "number of files updated in parallel. Defaults to 1.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "1")
+    private int threads;
+
+    @Option(names = {
+            "--report" }, description = "file to save the result of each file: the status (SUCCESS, SKIPPED or FAILED), the path and the error message, separated by tabs.", required = false, paramLabel = "<file>")
+    private Path report;
+
     @Option(names = { "-h", "--help" }, usageHelp = true, description = "output usage information")
     private boolean printHelp;
 
@@ -44,9 +70,29 @@ public class DicomModifyCommand implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
-        DicomFiles dicomFiles = DicomFiles.scan(dcmFiles);
-        DicomModify.updateDicomFiles(dicomFiles, backup, updateAttrs, deleteAttrs);
-        return 0;
+        DicomFileIndex index = scanIndex == null ? null : DicomFileIndex.load(scanIndex);
+        DicomFiles dicomFiles = DicomFiles.scan(true, scanThreads, index, dcmFiles);
+        if (index != null) {
+            index.save();
+        }
+        List<EditResult> results = DicomModify.updateDicomFiles(dicomFiles, backup, inPlace,
+                EditPlan.create(updateAttrs, deleteAttrs), threads);
+        int[] counts = new int[EditResult.Status.values().length];
+        for (EditResult r : results) {
+            counts[r.status.ordinal()]++;
+        }
+        if (report != null) {
+            try (BufferedWriter w = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+                for (EditResult r : results) {
+                    w.write(r.toString());
+                    w.newLine();
+                }
+            }
+        }
+        System.out.println(String.format("Updated %d, skipped %d, failed %d DICOM files.",
+                counts[EditResult.Status.SUCCESS.ordinal()], counts[EditResult.Status.SKIPPED.ordinal()],
+                counts[EditResult.Status.FAILED.ordinal()]));
+        return counts[EditResult.Status.FAILED.ordinal()] > 0 ? 1 : 0;
     }
 
     public static void main(String[] args) {
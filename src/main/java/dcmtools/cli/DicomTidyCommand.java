@@ -26,6 +26,26 @@ public class DicomTidyCommand implements Callable<Integer> {
             "--overwrite"}, required = false, description = "overwrite if the file already exists at the destination")
     private boolean overwrite = false;
 
+    @Option(names = {
+            "--copy"}, required = false, description = "copy the files instead of moving them.")
+    private boolean copy = false;
+
+    @Option(names = {
+            "--hardlink"}, required = false, description = "hard link the files instead of moving them. The destination must be on the same file system.")
+    private boolean hardlink = false;
+
+    @Option(names = {
+            "--reflink"}, required = false, description = "clone the files (copy-on-write, cp --reflink=always) instead of moving them. Requires a file system supporting it, e.g. Btrfs or XFS.")
+    private boolean reflink = false;
+
+    @Option(names = {
+            "--workers"}, required = false, arity = "1", defaultValue = "1", paramLabel = "<n>", description = "number of files to process in parallel. Defaults to 1.")
+    private int workers = 1;
+
+    @Option(names = {
+            "--journal"}, required = false, paramLabel = "<file>", description = "journal file recording the files done, to resume an interrupted run. The files done by previous runs are skipped.")
+    private Path journal;
+
     @Option(names = {"-h", "--help"}, usageHelp = true, description = "output usage information")
     private boolean printHelp;
 
@@ -53,11 +73,29 @@ public class DicomTidyCommand implements Callable<Integer> {
             new CommandLine(this).usage(System.err);
             return 1;
         }
-        new DicomTidy(pattern, overwrite).tidy(srcDir, dstDir);
+        new DicomTidy(pattern, overwrite, mode(), workers).tidy(srcDir, dstDir, journal);
         return 0;
     }
 
+    private DicomTidy.Mode mode() {
+        if (copy) {
+            return DicomTidy.Mode.COPY;
+        } else if (hardlink) {
+            return DicomTidy.Mode.HARDLINK;
+        } else if (reflink) {
+            return DicomTidy.Mode.REFLINK;
+        } else {
+            return DicomTidy.Mode.MOVE;
+        }
+    }
+
     private void validateArguments() throws IllegalArgumentException {
+        if ((copy ? 1 : 0) + (hardlink ? 1 : 0) + (reflink ? 1 : 0) > 1) {
+            throw new IllegalArgumentException("Only one of --copy, --hardlink and --reflink can be specified.");
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid --workers: " + workers);
+        }
         if (!Files.exists(srcDir)) {
             throw new IllegalArgumentException("Directory: '" + srcDir + "' is not found.");
         }
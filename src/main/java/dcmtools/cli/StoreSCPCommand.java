@@ -9,8 +9,10 @@ import org.apache.logging.log4j.Level;
 
 import dcmtools.network.TLSCiphers;
 import dcmtools.network.TLSProtocols;
+import dcmtools.network.storescp.Durability;
 import dcmtools.network.storescp.Options;
 import dcmtools.network.storescp.StoreSCP;
+import dcmtools.network.storescp.WriteBehindWriter;
 import dcmtools.util.LoggingUtils;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -44,6 +46,27 @@ public class StoreSCPCommand implements Callable<Integer> {
 			+ StoreSCP.DEFAULT_SOP_CLASSES_PROPERTIES_FILE, required = false, paramLabel = "<file>")
 	private String sopClassesFile;
 
+	@Option(names = {
+			"--max-associations" }, description = "maximum number of open associations. Further association requests are rejected with A-ASSOCIATE-RJ. Unlimited by default.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
+	private int maxAssociations;
+
+	@Option(names = {
+			"--max-threads" }, description = "maximum number of association threads. Each open association uses one, so the open associations are limited to it as well (unless --max-associations is lower). Unbounded by default.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
+	private int maxThreads;
+
+	@Option(names = {
+			"--virtual-threads" }, description = "use virtual threads (Java 21 or later) instead of the worker pool.", required = false)
+	private boolean virtualThreads = false;
+
+	@Option(names = {
+			"--durability" }, description = "when to send the C-STORE-RSP: SYNC (after the file is written on the association thread), FSYNC (after the file is written and fsynced by the I/O thread) or ASYNC (as soon as the object is received into memory and queued to the I/O thread). Defaults to SYNC.", required = false, paramLabel = "<policy>", defaultValue = "SYNC")
+	private Durability durability;
+
+	@Option(names = {
+			"--write-queue" }, description = "maximum number of received objects waiting to be written by the I/O thread, for FSYNC and ASYNC durability. Defaults to "
+					+ WriteBehindWriter.DEFAULT_QUEUE_CAPACITY, arity = "1", required = false, paramLabel = "<n>")
+	private int writeQueueCapacity = WriteBehindWriter.DEFAULT_QUEUE_CAPACITY;
+
 	@Option(names = {
 			"--max-ops-invoked" }, description = "maximum number of operations this AE may invoke asynchronously, unlimited by default.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
 	private int maxOpsInvoked;
@@ -136,6 +159,11 @@ public class StoreSCPCommand implements Callable<Integer> {
 		}
 		ob.setDirectory(this.directory);
 		ob.setApplicationEntity(this.aeTitle, this.host, this.port);
+		ob.setMaxAssociations(this.maxAssociations);
+		ob.setMaxThreads(this.maxThreads);
+		ob.setVirtualThreads(this.virtualThreads);
+		ob.setDurability(this.durability);
+		ob.setWriteQueueCapacity(this.writeQueueCapacity);
 		ob.setMaxOpsInvoked(this.maxOpsInvoked);
 		ob.setMaxOpsPerformed(this.maxOpsPerformed);
 		ob.setPackPDV(this.packPDV);
@@ -53,10 +53,58 @@ public class StoreSCUCommand implements Callable<Integer> {
 			"--uid-suffix" }, description = "specify suffix to be appended to Study, Series and SOP Instance UID of the sent objects.", required = false, paramLabel = "<uid>")
 	private String uidSuffix = null;
 
+	@Option(names = {
+			"--associations" }, description = "number of concurrent associations. The files are partitioned by series, so the order within a series is preserved. Defaults to 1.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "1")
+	private int associations;
+
+	@Option(names = {
+			"--scan-threads" }, description = "number of threads to scan the input directories in parallel. Defaults to 1.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "1")
+	private int scanThreads;
+
+	@Option(names = {
+			"--scan-index" }, description = "index file to cache the scanned DICOM file headers. Only new or modified files are parsed on subsequent runs. It is created if it does not exist.", required = false, paramLabel = "<file>")
+	private Path scanIndex;
+
+	@Option(names = {
+			"--streaming" }, description = "start sending while the input directories are still being scanned. The files are sent in scan order instead of being sorted by study and series.", required = false)
+	private boolean streaming = false;
+
+	@Option(names = {
+			"--ledger" }, description = "file to record the instances acknowledged by the remote AE. It is created if it does not exist, and appended otherwise.", required = false, paramLabel = "<file>")
+	private Path ledger;
+
+	@Option(names = {
+			"--resume" }, description = "skip the instances recorded in the ledger, unless their files have been modified since. Requires --ledger.", required = false)
+	private boolean resume = false;
+
+	@Option(names = {
+			"--retries" }, description = "number of times the files not stored are sent again, over new associations, when the association failed or the remote AE was out of resources. Defaults to 0.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
+	private int retries;
+
+	@Option(names = {
+			"--retry-delay" }, description = "delay in milliseconds before the first retry, doubled for each following retry (up to a minute). Defaults to 1000.", arity = "1", required = false, paramLabel = "<ms>", defaultValue = "1000")
+	private long retryDelay;
+
+	@Option(names = {
+			"--failure-report" }, description = "file to save the files not stored in the end: the path, the SOP Instance UID, the C-STORE-RSP status (or - if none), RETRYABLE or PERMANENT and the reason, separated by tabs.", required = false, paramLabel = "<file>")
+	private Path failureReport;
+
+	@Option(names = {
+			"--transcoders" }, description = "number of threads decompressing the files ahead of the senders, when the transfer syntax of the files is not accepted or the files are modified. By default, the files are decompressed by the senders while they are sent.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
+	private int transcoders;
+
+	@Option(names = {
+			"--compress" }, description = "propose a lossless compressed transfer syntax for the uncompressed files, and compress them into it if accepted: rle, jpeg-ls, jpeg-lossless or deflate. The files are compressed by the transcoders (one per processor unless --transcoders is specified).", arity = "1", required = false, paramLabel = "<rle|jpeg-ls|jpeg-lossless|deflate>")
+	private String compress;
+
 	@Option(names = {
 			"--max-ops-invoked" }, description = "maximum number of operations this AE may invoke asynchronously, unlimited by default.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
 	private int maxOpsInvoked;
 
+	@Option(names = {
+			"--adaptive-window" }, description = "adapt the number of outstanding C-STORE requests to the response latency, from 1 up to the negotiated maximum number of operations invoked (or 256 if unlimited).", required = false)
+	private boolean adaptiveWindow = false;
+
 	@Option(names = {
 			"--max-ops-performed" }, description = "maximum number of operations this AE may perform asynchronously, unlimited by default.", arity = "1", required = false, paramLabel = "<n>", defaultValue = "0")
 	private int maxOpsPerformed;
@@ -149,8 +197,26 @@ public class StoreSCUCommand implements Callable<Integer> {
 		ob.setRemoteApplicationEntity(this.calledAE);
 		ob.setHttpProxy(this.httpProxy);
 		ob.setUidSuffix(this.uidSuffix);
+		ob.setAssociations(this.associations);
+		ob.setScanThreads(this.scanThreads);
+		ob.setStreaming(this.streaming);
+		ob.setScanIndex(this.scanIndex);
+		ob.setTranscoders(this.transcoders);
+		ob.setLedger(this.ledger);
+		ob.setResume(this.resume);
+		ob.setRetries(this.retries);
+		ob.setRetryDelay(this.retryDelay);
+		ob.setFailureReport(this.failureReport);
+		try {
+			ob.setCompress(this.compress);
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			new CommandLine(this).usage(System.err);
+			return 1;
+		}
 		ob.setMaxOpsInvoked(this.maxOpsInvoked);
 		ob.setMaxOpsPerformed(this.maxOpsPerformed);
+		ob.setAdaptiveWindow(this.adaptiveWindow);
 		ob.setPackPDV(this.packPDV);
 		ob.setConnectTimeout(this.connectTimeout);
 		ob.setAcceptTimeout(this.acceptTimeout);
@@ -166,10 +232,22 @@ public class StoreSCUCommand implements Callable<Integer> {
 		ob.setKeyStore(this.keyStore, this.keyStoreType, this.keyStorePass);
 		ob.setKeyPass(this.keyPass);
 		ob.setTrustStore(this.trustStore, this.trustStoreType, this.trustStorePass);
-		Options options = ob.build();
+		Options options;
+		try {
+			options = ob.build();
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			new CommandLine(this).usage(System.err);
+			return 1;
+		}
 
 		Progress progress = new StoreSCU(options).send(dcmFiles);
 		System.out.println(String.format("Sent %s", progress));
+		if (progress.transferredFiles < progress.totalFiles) {
+			System.err.println(String.format("Failed to send %d files.", progress.totalFiles - progress.transferredFiles)
+					+ (this.failureReport == null ? "" : " See " + this.failureReport));
+			return 1;
+		}
 		return 0;
 	}
 
@@ -0,0 +1,199 @@
+package dcmtools.data;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputHandler;
+import org.dcm4che3.io.DicomInputStream;
+
+/**
+ * Applies attribute updates by overwriting the values in the DICOM file, when
+ * every updated value keeps its encoded length. Only top level data set
+ * attributes already present in the file can be patched. Removals, file meta
+ * information updates, sequences and the pixel data are not supported, nor are
+ * the values encoded with the specific character set of the file (if it has
+ * one).
+ */
+public class DicomFilePatcher {
+
+    private static class Element {
+        final long position;
+        final int length;
+        final VR vr;
+
+        Element(long position, int length, VR vr) {
+            this.position = position;
+            this.length = length;
+            this.vr = vr;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class LastTagReached extends IOException {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /*
+     * records the value positions of the top level attributes to patch, and
+     * stops after the last one.
+     */
+    private static class ElementRecorder implements DicomInputHandler {
+
+        private final int[] _tags;
+        private final int _lastTag;
+        private final Map<Integer, Element> _elements = new HashMap<Integer, Element>();
+
+        ElementRecorder(int[] tags) {
+            _tags = tags;
+            int lastTag = 0;
+            for (int tag : tags) {
+                if (Integer.compareUnsigned(tag, lastTag) > 0) {
+                    lastTag = tag;
+                }
+            }
+            _lastTag = lastTag;
+        }
+
+        Element element(int tag) {
+            return _elements.get(tag);
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
+            if (dis.level() == 0) {
+                int tag = dis.tag();
+                if (Integer.compareUnsigned(tag, _lastTag) > 0) {
+                    throw new LastTagReached();
+                }
+                if (dis.length() != -1 && contains(tag)) {
+                    _elements.put(tag, new Element(dis.getPosition(), dis.length(), dis.vr()));
+                }
+            }
+            dis.readValue(dis, attrs);
+        }
+
+        private boolean contains(int tag) {
+            for (int t : _tags) {
+                if (t == tag) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
+            dis.readValue(dis, seq);
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
+            dis.readValue(dis, frags);
+        }
+
+        @Override
+        public void startDataset(DicomInputStream dis) throws IOException {
+        }
+
+        @Override
+        public void endDataset(DicomInputStream dis) throws IOException {
+        }
+    }
+
+    public static boolean patch(Path dicomFile, EditPlan plan) throws IOException {
+        return patch(dicomFile, plan.fmiUpdate(), plan.fmiRemove(), plan.dsUpdate(), plan.dsRemove());
+    }
+
+    /**
+     * Patches the DICOM file in place if all the edits can be applied without
+     * changing the value lengths. The file is left unchanged otherwise.
+     *
+     * @return true if the file was patched, false if the edits require the file
+     *         to be rewritten.
+     * @throws IOException
+     */
+    public static boolean patch(Path dicomFile, Attributes fmiUpdate, List<int[]> fmiRemove, Attributes dsUpdate,
+            List<int[]> dsRemove) throws IOException {
+        if ((fmiUpdate != null && !fmiUpdate.isEmpty()) || (fmiRemove != null && !fmiRemove.isEmpty())
+                || (dsRemove != null && !dsRemove.isEmpty()) || dsUpdate == null || dsUpdate.isEmpty()) {
+            return false;
+        }
+        int[] tags = dsUpdate.tags();
+        for (int tag : tags) {
+            if (dsUpdate.getVR(tag) == VR.SQ || tag == Tag.SpecificCharacterSet
+                    || Integer.compareUnsigned(tag, Tag.PixelData) >= 0) {
+                return false;
+            }
+        }
+        try (FileChannel ch = FileChannel.open(dicomFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            @SuppressWarnings("resource")
+            DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+            dis.readFileMetaInformation();
+            String tsuid = dis.getTransferSyntax();
+            if (UID.DeflatedExplicitVRLittleEndian.equals(tsuid) || UID.JPIPReferencedDeflate.equals(tsuid)) {
+                return false;
+            }
+            Attributes ds = new Attributes(dis.bigEndian(), 64);
+            ElementRecorder recorder = new ElementRecorder(tags);
+            dis.setDicomInputHandler(recorder);
+            try {
+                dis.readAttributes(ds, -1, -1);
+            } catch (LastTagReached e) {
+                // all the attributes to patch are read
+            } finally {
+                dis.setDicomInputHandler(dis);
+            }
+            boolean specificCharacterSet = ds.containsValue(Tag.SpecificCharacterSet);
+            Attributes values = new Attributes(dsUpdate, dis.bigEndian());
+            long[] positions = new long[tags.length];
+            byte[][] patches = new byte[tags.length][];
+            for (int i = 0; i < tags.length; i++) {
+                Element e = recorder.element(tags[i]);
+                VR vr = values.getVR(tags[i]);
+                if (e == null || e.vr != vr || (specificCharacterSet && vr.useSpecificCharacterSet())) {
+                    return false;
+                }
+                byte[] value = values.getBytes(tags[i]);
+                int length = value == null ? 0 : value.length;
+                if ((length + 1 & ~1) != e.length) {
+                    return false;
+                }
+                byte[] patch = new byte[e.length];
+                if (length > 0) {
+                    System.arraycopy(value, 0, patch, 0, length);
+                }
+                if (length < patch.length) {
+                    patch[length] = (byte) vr.paddingByte();
+                }
+                positions[i] = e.position;
+                patches[i] = patch;
+            }
+            for (int i = 0; i < patches.length; i++) {
+                ByteBuffer buf = ByteBuffer.wrap(patches[i]);
+                long position = positions[i];
+                while (buf.hasRemaining()) {
+                    position += ch.write(buf, position);
+                }
+            }
+        }
+        return true;
+    }
+
+}
@@ -2,26 +2,38 @@ package dcmtools.data;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Attributes.UpdatePolicy;
 import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
-import org.dcm4che3.util.TagUtils;
 
 import dcmtools.util.DicomFileInfo;
+import dcmtools.util.DicomFileUtils;
 import dcmtools.util.DicomFiles;
 
 public class DicomModify {
@@ -30,106 +42,238 @@ public class DicomModify {
 
 	public static void updateDicomFiles(DicomFiles dicomFiles, boolean backup, Attributes fmiUpdate,
 			List<int[]> fmiRemove, Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
-		if (dicomFiles != null && !dicomFiles.isEmpty()) {
-			for (DicomFileInfo fi : dicomFiles) {
-				updateDicomFile(fi.path, backup, fmiUpdate, fmiRemove, dsUpdate, dsRemove);
-			}
-		}
+		updateDicomFiles(dicomFiles, backup, false, fmiUpdate, fmiRemove, dsUpdate, dsRemove);
 	}
 
-	public static void updateDicomFile(Path dicomFile, boolean backup, Attributes fmiUpdate, List<int[]> fmiRemove,
-			Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
-		Path dir = dicomFile.getParent();
-		String dicomFileName = dicomFile.toFile().getName();
-		Path dstDicomFile = dir == null ? Files.createFile(Paths.get(dicomFile.toString() + ".tmp"))
-				: Files.createTempFile(dir, dicomFileName, ".tmp");
-		logger.info("updating DICOM file: " + dicomFile);
-		updateDicomFile(dicomFile, dstDicomFile, fmiUpdate, fmiRemove, dsUpdate, dsRemove);
-		if (backup) {
-			Path backupFile = Paths.get(dir.toString(), dicomFileName + ".bak");
-			Files.move(dicomFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
-		}
-		Files.move(dstDicomFile, dicomFile, StandardCopyOption.REPLACE_EXISTING);
+	public static void updateDicomFiles(DicomFiles dicomFiles, boolean backup, boolean inPlace, Attributes fmiUpdate,
+			List<int[]> fmiRemove, Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
+		checkResults(updateDicomFiles(dicomFiles, backup, inPlace,
+				new EditPlan(fmiUpdate, fmiRemove, dsUpdate, dsRemove), 1));
 	}
 
-	public static void updateDicomFile(Path dicomFile, Path dstDicomFile, Attributes fmiUpdate, List<int[]> fmiRemove,
-			Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
-		try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(dicomFile)))) {
-			Attributes fmi = dis.readFileMetaInformation();
-			Attributes ds = dis.readDataset(-1, -1);
-			updateAttributes(fmi, fmiUpdate, fmiRemove, ds, dsUpdate, dsRemove);
-			try (DicomOutputStream dos = new DicomOutputStream(
-					new BufferedOutputStream(Files.newOutputStream(dstDicomFile)), UID.ExplicitVRLittleEndian)) {
-				dos.writeDataset(fmi, ds);
+	public static void updateDicomFiles(DicomFiles dicomFiles, boolean backup, List<AttributeSpec> update,
+			List<AttributeSpec> remove) throws IOException {
+		updateDicomFiles(dicomFiles, backup, false, update, remove);
+	}
+
+	public static void updateDicomFiles(DicomFiles dicomFiles, boolean backup, boolean inPlace,
+			List<AttributeSpec> update, List<AttributeSpec> remove) throws IOException {
+		checkResults(updateDicomFiles(dicomFiles, backup, inPlace, EditPlan.create(update, remove), 1));
+	}
+
+	private static void checkResults(List<EditResult> results) throws IOException {
+		int failed = 0;
+		for (EditResult r : results) {
+			if (r.status == EditResult.Status.FAILED) {
+				failed++;
 			}
 		}
+		if (failed > 0) {
+			throw new IOException("failed to update " + failed + " of " + results.size() + " DICOM files.");
+		}
 	}
 
-	public static void updateDicomFiles(DicomFiles dicomFiles, boolean backup, List<AttributeSpec> update,
-			List<AttributeSpec> remove) throws IOException {
-		if (dicomFiles != null && !dicomFiles.isEmpty()) {
-			for (DicomFileInfo fi : dicomFiles) {
-				updateDicomFile(fi.path, backup, update, remove);
+	/**
+	 * Updates the DICOM files with the specified number of threads. A failure
+	 * does not stop the batch: it is logged and reported in the results.
+	 * 
+	 * @param dicomFiles The DICOM files.
+	 * @param backup     Keep the original files as backup.
+	 * @param inPlace    Patch the files in place when possible. See
+	 *                   {@link #updateDicomFile(Path, boolean, boolean, EditPlan)}.
+	 * @param plan       The edits.
+	 * @param nbThreads  Number of files updated in parallel.
+	 * @return the results, in the order of the files.
+	 */
+	public static List<EditResult> updateDicomFiles(DicomFiles dicomFiles, final boolean backup,
+			final boolean inPlace, final EditPlan plan, int nbThreads) {
+		if (dicomFiles == null || dicomFiles.isEmpty()) {
+			return new ArrayList<EditResult>(0);
+		}
+		final List<Path> files = new ArrayList<Path>(dicomFiles.size());
+		for (DicomFileInfo fi : dicomFiles) {
+			files.add(fi.path);
+		}
+		final EditResult[] results = new EditResult[files.size()];
+		if (nbThreads <= 1 || files.size() <= 1) {
+			for (int i = 0; i < results.length; i++) {
+				results[i] = tryUpdateDicomFile(files.get(i), backup, inPlace, plan);
+			}
+			return Arrays.asList(results);
+		}
+		final AtomicInteger next = new AtomicInteger();
+		int nbWorkers = Math.min(nbThreads, files.size());
+		ExecutorService executor = Executors.newFixedThreadPool(nbWorkers);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(nbWorkers);
+			for (int i = 0; i < nbWorkers; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						int i;
+						while ((i = next.getAndIncrement()) < results.length) {
+							results[i] = tryUpdateDicomFile(files.get(i), backup, inPlace, plan);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException e) {
+					// not thrown: the failures are caught per file.
+					logger.error(e.getMessage(), e);
+				}
 			}
+		} finally {
+			executor.shutdownNow();
 		}
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == null) {
+				results[i] = new EditResult(files.get(i), EditResult.Status.SKIPPED, "interrupted");
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private static EditResult tryUpdateDicomFile(Path dicomFile, boolean backup, boolean inPlace, EditPlan plan) {
+		if (plan.isEmpty()) {
+			return new EditResult(dicomFile, EditResult.Status.SKIPPED, "nothing to update");
+		}
+		try {
+			updateDicomFile(dicomFile, backup, inPlace, plan);
+			return new EditResult(dicomFile, EditResult.Status.SUCCESS, null);
+		} catch (NoSuchFileException e) {
+			logger.warn("DICOM file: " + dicomFile + " no longer exists. Skipped.");
+			return new EditResult(dicomFile, EditResult.Status.SKIPPED, "file not found");
+		} catch (Throwable e) {
+			logger.error("failed to update DICOM file: " + dicomFile + ": " + e.getMessage(), e);
+			return new EditResult(dicomFile, EditResult.Status.FAILED, String.valueOf(e.getMessage()));
+		}
+	}
+
+	public static void updateDicomFile(Path dicomFile, boolean backup, Attributes fmiUpdate, List<int[]> fmiRemove,
+			Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
+		updateDicomFile(dicomFile, backup, false, new EditPlan(fmiUpdate, fmiRemove, dsUpdate, dsRemove));
+	}
+
+	public static void updateDicomFile(Path dicomFile, boolean backup, boolean inPlace, Attributes fmiUpdate,
+			List<int[]> fmiRemove, Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
+		updateDicomFile(dicomFile, backup, inPlace, new EditPlan(fmiUpdate, fmiRemove, dsUpdate, dsRemove));
 	}
 
 	public static void updateDicomFile(Path dicomFile, boolean backup, List<AttributeSpec> update,
 			List<AttributeSpec> remove) throws IOException {
+		updateDicomFile(dicomFile, backup, false, EditPlan.create(update, remove));
+	}
+
+	public static void updateDicomFile(Path dicomFile, boolean backup, boolean inPlace, List<AttributeSpec> update,
+			List<AttributeSpec> remove) throws IOException {
+		updateDicomFile(dicomFile, backup, inPlace, EditPlan.create(update, remove));
+	}
+
+	/**
+	 * Updates the DICOM file.
+	 * 
+	 * @param dicomFile The DICOM file.
+	 * @param backup    Keep the original file as backup.
+	 * @param inPlace   Overwrite the values in the file if the edits do not change
+	 *                  their lengths, instead of rewriting the file. See
+	 *                  {@link DicomFilePatcher}. Ignored if backup is true.
+	 * @param plan      The edits.
+	 */
+	public static void updateDicomFile(Path dicomFile, boolean backup, boolean inPlace, EditPlan plan)
+			throws IOException {
+		if (inPlace && !backup && DicomFilePatcher.patch(dicomFile, plan)) {
+			logger.info("patched DICOM file in place: " + dicomFile);
+			return;
+		}
 		Path dir = dicomFile.getParent();
 		String dicomFileName = dicomFile.toFile().getName();
 		Path dstDicomFile = dir == null ? Files.createFile(Paths.get(dicomFile.toString() + ".tmp"))
 				: Files.createTempFile(dir, dicomFileName, ".tmp");
 		logger.info("updating DICOM file: " + dicomFile);
-		updateDicomFile(dicomFile, dstDicomFile, update, remove);
-		if (backup) {
-			Path backupFile = Paths.get(dir.toString(), dicomFileName + ".bak");
-			Files.move(dicomFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
+		try {
+			updateDicomFile(dicomFile, dstDicomFile, plan);
+			if (backup) {
+				Path backupFile = Paths.get(dir.toString(), dicomFileName + ".bak");
+				Files.move(dicomFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(dstDicomFile, dicomFile, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(dstDicomFile);
 		}
-		Files.move(dstDicomFile, dicomFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public static void updateDicomFile(Path dicomFile, Path dstDicomFile, Attributes fmiUpdate, List<int[]> fmiRemove,
+			Attributes dsUpdate, List<int[]> dsRemove) throws IOException {
+		updateDicomFile(dicomFile, dstDicomFile, new EditPlan(fmiUpdate, fmiRemove, dsUpdate, dsRemove));
 	}
 
 	public static void updateDicomFile(Path dicomFile, Path dstDicomFile, List<AttributeSpec> update,
 			List<AttributeSpec> remove) throws IOException {
+		updateDicomFile(dicomFile, dstDicomFile, EditPlan.create(update, remove));
+	}
 
-		try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(dicomFile)))) {
+	/**
+	 * Updates the DICOM file and saves the result to the destination file. The
+	 * attributes before the pixel data are parsed and updated, and the rest of the
+	 * file (pixel data and any trailing attributes) is copied as is, without
+	 * reading it into memory. The whole data set is read and re-encoded only if
+	 * the file has no file meta information, is deflated, if its transfer syntax
+	 * is changed, or if the pixel data or any later attribute is updated or
+	 * removed.
+	 */
+	public static void updateDicomFile(Path dicomFile, Path dstDicomFile, EditPlan plan) throws IOException {
+		try (FileChannel in = FileChannel.open(dicomFile, StandardOpenOption.READ);
+				DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Channels.newInputStream(in)))) {
 			Attributes fmi = dis.readFileMetaInformation();
-			Attributes ds = dis.readDataset(-1, -1);
-			if ((update != null && !update.isEmpty()) || (remove != null && !remove.isEmpty())) {
-				Attributes fmiUpdate = new Attributes();
-				Attributes dsUpdate = new Attributes();
-				if (update != null) {
-					for (AttributeSpec a : update) {
-						int[] tags = a.tags();
-						if (TagUtils.isFileMetaInformation(tags[0])) {
-							a.addToAttributes(fmiUpdate);
-						} else {
-							a.addToAttributes(dsUpdate);
-						}
-					}
+			String tsuid = fmi == null ? null : fmi.getString(Tag.TransferSyntaxUID);
+			if (fmi != null) {
+				updateAttributes(fmi, plan.fmiUpdate(), plan.fmiRemove());
+			}
+			if (fmi == null || tsuid == null || isDeflated(tsuid)
+					|| !tsuid.equals(fmi.getString(Tag.TransferSyntaxUID)) || plan.editsBulkData()) {
+				Attributes ds = dis.readDataset(-1, -1);
+				updateAttributes(ds, plan.dsUpdate(), plan.dsRemove());
+				try (DicomOutputStream dos = new DicomOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(dstDicomFile)), UID.ExplicitVRLittleEndian)) {
+					dos.writeDataset(fmi, ds);
 				}
-				List<int[]> dsRemove = new ArrayList<int[]>();
-				List<int[]> fmiRemove = new ArrayList<int[]>();
-				if (remove != null) {
-					for (AttributeSpec a : remove) {
-						int[] tags = a.tags();
-						if (TagUtils.isFileMetaInformation(tags[0])) {
-							fmiRemove.add(tags);
-						} else {
-							dsRemove.add(tags);
-						}
-					}
+				return;
+			}
+			Attributes ds = new Attributes(dis.bigEndian(), 64);
+			long bulkDataPosition = DicomFileUtils.readDataset(dis, Tag.PixelData, ds);
+			updateAttributes(ds, plan.dsUpdate(), plan.dsRemove());
+			try (FileChannel out = FileChannel.open(dstDicomFile, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					DicomOutputStream dos = new DicomOutputStream(
+							new BufferedOutputStream(Channels.newOutputStream(out)), UID.ExplicitVRLittleEndian)) {
+				dos.writeDataset(fmi, ds);
+				dos.flush();
+				if (bulkDataPosition >= 0) {
+					transfer(in, bulkDataPosition, out);
 				}
-				updateAttributes(fmi, fmiUpdate, fmiRemove);
-				updateAttributes(ds, dsUpdate, dsRemove);
 			}
-			if (remove != null && !remove.isEmpty()) {
+		}
+	}
 
+	private static boolean isDeflated(String tsuid) {
+		return UID.DeflatedExplicitVRLittleEndian.equals(tsuid) || UID.JPIPReferencedDeflate.equals(tsuid);
+	}
+
+	private static void transfer(FileChannel in, long position, FileChannel out) throws IOException {
+		long size = in.size();
+		while (position < size) {
+			long n = in.transferTo(position, size - position, out);
+			if (n <= 0) {
+				throw new EOFException("unexpected end of file at position " + position);
 			}
-			try (DicomOutputStream dos = new DicomOutputStream(
-					new BufferedOutputStream(Files.newOutputStream(dstDicomFile)), UID.ExplicitVRLittleEndian)) {
-				dos.writeDataset(fmi, ds);
-			}
+			position += n;
 		}
 	}
 
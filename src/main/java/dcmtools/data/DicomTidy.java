@@ -1,28 +1,101 @@
 package dcmtools.data;
 
+import dcmtools.io.ByteStreams;
+import dcmtools.util.AttributesPathFormat;
 import dcmtools.util.DicomFilePathPattern;
 import dcmtools.util.DicomFileUtils;
+import dcmtools.util.DirectoryCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.util.AttributesFormat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DicomTidy {
 
+    /**
+     * How the files are placed at the destination.
+     */
+    public static enum Mode {
+        /**
+         * move (rename) the source file.
+         */
+        MOVE,
+        /**
+         * copy the source file.
+         */
+        COPY,
+        /**
+         * hard link the source file. The destination must be on the same file
+         * system.
+         */
+        HARDLINK,
+        /**
+         * copy-on-write clone of the source file (cp --reflink=always). Requires a
+         * file system supporting it, e.g. Btrfs or XFS.
+         */
+        REFLINK;
+
+        public String verb() {
+            switch (this) {
+            case COPY:
+                return "copying";
+            case HARDLINK:
+                return "linking";
+            case REFLINK:
+                return "cloning";
+            default:
+                return "moving";
+            }
+        }
+    }
+
     private static final Logger logger = LogManager.getLogger(DicomTidy.class);
 
-    private final AttributesFormat _format;
+    private static final String PART_EXT = ".part.tmp";
+
+    private final AttributesPathFormat _format;
     private boolean _overwrite = false;
+    private final Mode _mode;
+    private final int _workers;
+    private final DirectoryCache _dirs = new DirectoryCache();
 
-    public DicomTidy(String pattern, boolean replaceIfExists) {
-        _format = new AttributesFormat(pattern == null ? DicomFilePathPattern.DEFAULT_PATTERN : pattern);
+    /**
+     * Constructor.
+     *
+     * @param pattern         The destination path pattern.
+     * @param replaceIfExists Replace the existing destination files.
+     * @param mode            How the files are placed at the destination.
+     * @param workers         Number of files processed in parallel. The source
+     *                        directory is also scanned with as many threads.
+     */
+    public DicomTidy(String pattern, boolean replaceIfExists, Mode mode, int workers) {
+        _format = new AttributesPathFormat(pattern == null ? DicomFilePathPattern.DEFAULT_PATTERN : pattern);
         _overwrite = replaceIfExists;
+        _mode = mode == null ? Mode.MOVE : mode;
+        _workers = workers > 0 ? workers : 1;
+    }
+
+    public DicomTidy(String pattern, boolean replaceIfExists) {
+        this(pattern, replaceIfExists, Mode.MOVE, 1);
     }
 
     public DicomTidy() {
@@ -30,26 +103,277 @@ public class DicomTidy {
     }
 
     public void tidy(Path srcDir, Path dstDir) throws Exception {
-        Set<Path> dicomFiles = DicomFileUtils.getDicomFiles(srcDir, false);
-        logger.info("found " + dicomFiles.size() + " dicom files in '" + srcDir + "'");
-        for (Path srcDicomFile : dicomFiles) {
-            Attributes attrs = DicomFileUtils.getDicomAttributes(srcDicomFile);
+        tidy(srcDir, dstDir, (Path) null);
+    }
+
+    /**
+     * Re-organizes the DICOM files in the source directory.
+     *
+     * @param srcDir      The source directory.
+     * @param dstDir      The destination directory.
+     * @param journalFile The journal file to resume an interrupted run. The files
+     *                    done by the previous runs are skipped. Can be null.
+     * @throws Exception
+     */
+    public void tidy(Path srcDir, Path dstDir, Path journalFile) throws Exception {
+        if (journalFile == null) {
+            tidy(srcDir, dstDir, (TidyJournal) null);
+        } else {
+            try (TidyJournal journal = TidyJournal.open(journalFile, PART_EXT)) {
+                tidy(srcDir, dstDir, journal);
+            }
+        }
+    }
+
+    private void tidy(Path srcDir, final Path dstDir, final TidyJournal journal) throws Exception {
+        // the files done by the previous runs are skipped before being sniffed.
+        final List<Path> dicomFiles = new ArrayList<Path>(DicomFileUtils.getDicomFiles(srcDir, false, _workers,
+                journal == null ? null : new PathMatcher() {
+                    @Override
+                    public boolean matches(Path f) {
+                        return !journal.isDone(f);
+                    }
+                }));
+        logger.info("found " + dicomFiles.size() + " dicom files in '" + srcDir + "'"
+                + (journal == null ? "" : " (" + journal.doneCount() + " files done by previous runs)"));
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        if (_workers <= 1 || dicomFiles.size() <= 1) {
+            for (Path srcDicomFile : dicomFiles) {
+                tidy(srcDicomFile, dstDir, journal, failed);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(_workers);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>(_workers);
+                for (int i = 0; i < _workers; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            int i;
+                            while ((i = next.getAndIncrement()) < dicomFiles.size()) {
+                                tidy(dicomFiles.get(i), dstDir, journal, failed);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+        if (failed.get() > 0) {
+            throw new IOException("failed to tidy " + failed.get() + " of " + dicomFiles.size() + " dicom files.");
+        }
+    }
+
+    private void tidy(Path srcDicomFile, Path dstDir, TidyJournal journal, AtomicInteger failed) {
+        try {
+            Attributes attrs = DicomFileUtils.getDicomAttributes(srcDicomFile, _format.stopTag());
             Path dstDicomFile = Paths.get(dstDir.toString(), _format.format(attrs));
             if (Files.exists(dstDicomFile)) {
-                if (_overwrite) {
-                    logger.info("moving '" + srcDicomFile + "' to '" + dstDicomFile + "' (already exists. Replace.)");
-                    Files.move(srcDicomFile, dstDicomFile, StandardCopyOption.REPLACE_EXISTING);
-                } else {
+                if (isPlaced(srcDicomFile, dstDicomFile, journal)) {
+                    return;
+                }
+                if (!_overwrite) {
                     logger.info("'" + dstDicomFile + "' already exists. Ignored.");
+                    return;
                 }
+                logger.info(_mode.verb() + " '" + srcDicomFile + "' to '" + dstDicomFile
+                        + "' (already exists. Replace.)");
             } else {
-                logger.info("moving '" + srcDicomFile + "' to '" + dstDicomFile + "'");
-                Path dstParentDir = dstDicomFile.getParent();
-                if (dstParentDir != null && !Files.exists(dstParentDir)) {
-                    Files.createDirectories(dstParentDir);
+                logger.info(_mode.verb() + " '" + srcDicomFile + "' to '" + dstDicomFile + "'");
+            }
+            if (journal != null) {
+                journal.begin(srcDicomFile, dstDicomFile);
+            }
+            _dirs.createParentDirectories(dstDicomFile);
+            try {
+                place(srcDicomFile, dstDicomFile);
+            } catch (NoSuchFileException e) {
+                if (!Files.exists(srcDicomFile)) {
+                    throw e;
+                }
+                // cached directory removed in the meantime
+                _dirs.invalidate(dstDicomFile.getParent());
+                _dirs.createParentDirectories(dstDicomFile);
+                place(srcDicomFile, dstDicomFile);
+            }
+            if (journal != null) {
+                journal.done(srcDicomFile, dstDicomFile);
+            }
+        } catch (FileAlreadyExistsException e) {
+            try {
+                if (!isPlaced(srcDicomFile, Paths.get(e.getFile()), journal)) {
+                    logger.info("'" + e.getFile() + "' already exists. Ignored.");
                 }
-                Files.move(srcDicomFile, dstDicomFile);
+            } catch (Throwable t) {
+                failed.incrementAndGet();
+                logger.error("failed to tidy '" + srcDicomFile + "': " + t.getMessage(), t);
             }
+        } catch (Throwable e) {
+            failed.incrementAndGet();
+            logger.error("failed to tidy '" + srcDicomFile + "': " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * an interrupted file whose destination is identical to it was placed by the
+     * previous run, which stopped before it was marked done (or, for a move,
+     * before the source was deleted): it is completed instead of being ignored.
+     */
+    private boolean isPlaced(Path src, Path dst, TidyJournal journal) throws IOException {
+        if (journal == null || !journal.isInterrupted(src) || !contentEquals(src, dst)) {
+            return false;
+        }
+        if (_mode == Mode.MOVE) {
+            Files.delete(src);
+        }
+        logger.info("'" + dst + "' already in place.");
+        journal.done(src, dst);
+        return true;
+    }
+
+    private static boolean contentEquals(Path f1, Path f2) throws IOException {
+        if (Files.size(f1) != Files.size(f2)) {
+            return false;
+        }
+        try (InputStream in1 = Files.newInputStream(f1); InputStream in2 = Files.newInputStream(f2)) {
+            return ByteStreams.contentEquals(in1, in2);
+        }
+    }
+
+    /*
+     * the existence of the destination is checked by the file operation itself,
+     * so that two source files mapped to the same destination by concurrent
+     * workers cannot both succeed.
+     */
+    private void place(Path src, Path dst) throws IOException, InterruptedException {
+        switch (_mode) {
+        case COPY:
+            copy(src, dst);
+            break;
+        case HARDLINK:
+            if (_overwrite) {
+                Files.deleteIfExists(dst);
+            }
+            Files.createLink(dst, src);
+            break;
+        case REFLINK:
+            reflink(src, dst);
+            break;
+        default:
+            move(src, dst);
+        }
+    }
+
+    /*
+     * renames the source file. Across file systems, where a move is a copy then
+     * a delete, it is copied to a temporary file first like COPY, so that an
+     * interrupted move does not leave a partial file at the destination.
+     */
+    private void move(Path src, Path dst) throws IOException {
+        if (_overwrite) {
+            try {
+                Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (AtomicMoveNotSupportedException e) {
+                // another file system
+            }
+        } else if (link(src, dst)) {
+            Files.delete(src);
+            return;
+        }
+        // another file system, or hard links not supported
+        copy(src, dst);
+        Files.delete(src);
+    }
+
+    /*
+     * an atomic rename replaces the existing destination, and Files.move without
+     * REPLACE_EXISTING only checks it before renaming. Without overwriting, the
+     * file is linked to the destination instead, which fails if it exists, then
+     * unlinked.
+     */
+    private static boolean link(Path file, Path dst) throws IOException {
+        try {
+            Files.createLink(dst, file);
+            return true;
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        }
+    }
+
+    /*
+     * copies to a temporary file first, then renames it, so that an interrupted
+     * copy does not leave a partial file at the destination. The temporary file
+     * is unique, so that concurrent workers placing to the same destination do
+     * not write to the same temporary file.
+     */
+    private void copy(Path src, Path dst) throws IOException {
+        Path tmp = createTempFile(dst);
+        try {
+            Files.copy(src, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            placeTempFile(tmp, dst);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /*
+     * clones to a temporary file first, then renames it, so that a failed clone
+     * does not leave a partial file at the destination.
+     */
+    private void reflink(Path src, Path dst) throws IOException, InterruptedException {
+        Path tmp = createTempFile(dst);
+        try {
+            Process p = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", src.toString(),
+                    tmp.toString()).redirectErrorStream(true).start();
+            String output = new String(readAll(p), "UTF-8").trim();
+            int exitCode = p.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("failed to reflink '" + src + "' to '" + tmp + "' (exit code: " + exitCode
+                        + "): " + output);
+            }
+            placeTempFile(tmp, dst);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void placeTempFile(Path tmp, Path dst) throws IOException {
+        if (_overwrite) {
+            Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        if (link(tmp, dst)) {
+            Files.delete(tmp);
+        } else {
+            // hard links not supported
+            Files.move(tmp, dst);
+        }
+    }
+
+    /*
+     * named after the destination file, so that the temporary files left by an
+     * interrupted run can be found and removed (see TidyJournal).
+     */
+    private static Path createTempFile(Path dst) throws IOException {
+        return Files.createTempFile(dst.getParent(), dst.getFileName().toString(), PART_EXT);
+    }
+
+    private static byte[] readAll(Process p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = p.getInputStream().read(buf)) != -1) {
+            out.write(buf, 0, n);
         }
+        return out.toByteArray();
     }
 }
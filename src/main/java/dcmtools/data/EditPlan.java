@@ -0,0 +1,119 @@
+package dcmtools.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.TagUtils;
+
+/**
+ * The edits to apply to DICOM files, split into file meta information and data
+ * set updates and removals. It is built once and shared by all the files of a
+ * batch: it keeps its own copies of the edits, and gives each caller a copy of
+ * the updates, as even reading attributes may decode their values in place.
+ */
+public class EditPlan {
+
+    private final Attributes _fmiUpdate;
+    private final List<int[]> _fmiRemove;
+    private final Attributes _dsUpdate;
+    private final List<int[]> _dsRemove;
+    private final boolean _editsBulkData;
+
+    public EditPlan(Attributes fmiUpdate, List<int[]> fmiRemove, Attributes dsUpdate, List<int[]> dsRemove) {
+        _fmiUpdate = fmiUpdate == null ? new Attributes(0) : new Attributes(fmiUpdate);
+        _fmiRemove = copyOf(fmiRemove);
+        _dsUpdate = dsUpdate == null ? new Attributes(0) : new Attributes(dsUpdate);
+        _dsRemove = copyOf(dsRemove);
+        _editsBulkData = editsBulkData(_dsUpdate, _dsRemove);
+    }
+
+    private static List<int[]> copyOf(List<int[]> remove) {
+        if (remove == null) {
+            return Collections.<int[]>emptyList();
+        }
+        List<int[]> copy = new ArrayList<int[]>(remove.size());
+        for (int[] tags : remove) {
+            copy.add(tags.clone());
+        }
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return a copy of the file meta information updates.
+     */
+    public synchronized Attributes fmiUpdate() {
+        return new Attributes(_fmiUpdate);
+    }
+
+    public List<int[]> fmiRemove() {
+        return _fmiRemove;
+    }
+
+    /**
+     * @return a copy of the data set updates.
+     */
+    public synchronized Attributes dsUpdate() {
+        return new Attributes(_dsUpdate);
+    }
+
+    public List<int[]> dsRemove() {
+        return _dsRemove;
+    }
+
+    public boolean isEmpty() {
+        return _fmiUpdate.isEmpty() && _fmiRemove.isEmpty() && _dsUpdate.isEmpty() && _dsRemove.isEmpty();
+    }
+
+    /**
+     * @return true if the pixel data or any later top level attribute is updated
+     *         or removed.
+     */
+    public boolean editsBulkData() {
+        return _editsBulkData;
+    }
+
+    private static boolean editsBulkData(Attributes dsUpdate, List<int[]> dsRemove) {
+        for (int tag : dsUpdate.tags()) {
+            if (Integer.compareUnsigned(tag, Tag.PixelData) >= 0) {
+                return true;
+            }
+        }
+        for (int[] tags : dsRemove) {
+            if (Integer.compareUnsigned(tags[0], Tag.PixelData) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static EditPlan create(List<AttributeSpec> update, List<AttributeSpec> remove) {
+        Attributes fmiUpdate = new Attributes();
+        Attributes dsUpdate = new Attributes();
+        List<int[]> fmiRemove = new ArrayList<int[]>();
+        List<int[]> dsRemove = new ArrayList<int[]>();
+        if (update != null) {
+            for (AttributeSpec a : update) {
+                if (TagUtils.isFileMetaInformation(a.tags()[0])) {
+                    a.addToAttributes(fmiUpdate);
+                } else {
+                    a.addToAttributes(dsUpdate);
+                }
+            }
+        }
+        if (remove != null) {
+            for (AttributeSpec a : remove) {
+                int[] tags = a.tags();
+                if (TagUtils.isFileMetaInformation(tags[0])) {
+                    fmiRemove.add(tags);
+                } else {
+                    dsRemove.add(tags);
+                }
+            }
+        }
+        return new EditPlan(fmiUpdate, fmiRemove, dsUpdate, dsRemove);
+    }
+
+}
@@ -0,0 +1,29 @@
+package dcmtools.data;
+
+import java.nio.file.Path;
+
+/**
+ * The result of editing a DICOM file in a batch.
+ */
+public class EditResult {
+
+    public static enum Status {
+        SUCCESS, SKIPPED, FAILED
+    }
+
+    public final Path path;
+    public final Status status;
+    public final String message;
+
+    public EditResult(Path path, Status status, String message) {
+        this.path = path;
+        this.status = status;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return status + "\t" + path + (message == null ? "" : "\t" + message);
+    }
+
+}
@@ -0,0 +1,223 @@
+package dcmtools.data;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dcmtools.io.LineFiles;
+
+/**
+ * Append-only journal of the files placed by {@link DicomTidy}. A BEGIN record
+ * is appended before a file is placed, and a DONE record once it is in place.
+ * When the journal is opened again, the files already done are skipped, and the
+ * files begun but not done are checked and either marked done or cleaned up so
+ * that they are placed again. A file placed again whose destination is found
+ * identical to it is only marked done (see {@link #isInterrupted(Path)}).
+ *
+ * Each record is a line: the record type, the source and the destination
+ * paths, separated by tabs. An incomplete last line (e.g. the process was
+ * killed while writing it) is ignored.
+ */
+public class TidyJournal implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(TidyJournal.class);
+
+    private static final String BEGIN = "BEGIN";
+    private static final String DONE = "DONE";
+
+    private final Path _file;
+    private final Set<Path> _done = new HashSet<Path>();
+    private final Map<Path, Path> _inFlight = new LinkedHashMap<Path, Path>();
+    private final Set<Path> _interrupted = new HashSet<Path>();
+    private Writer _writer;
+
+    private TidyJournal(Path file) {
+        _file = file;
+    }
+
+    /**
+     * Opens (or creates) the journal, and recovers the files that were begun but
+     * not done.
+     *
+     * @param file    The journal file.
+     * @param tmpExt  The extension of the temporary files to delete for the
+     *                interrupted files. They are named after their destination
+     *                file and end with this extension.
+     * @return the journal.
+     * @throws IOException
+     */
+    public static TidyJournal open(Path file, String tmpExt) throws IOException {
+        TidyJournal journal = new TidyJournal(file);
+        journal.read();
+        journal._writer = LineFiles.newAppendWriter(file);
+        journal.recover(tmpExt);
+        return journal;
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(_file, StandardCharsets.UTF_8)) {
+            boolean torn = !LineFiles.endsWithNewLine(_file);
+            String line = reader.readLine();
+            String next;
+            for (; line != null; line = next) {
+                next = reader.readLine();
+                if (next == null && torn) {
+                    logger.warn("ignored incomplete journal record: '" + line + "'");
+                    break;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 3) {
+                    logger.warn("ignored invalid journal record: '" + line + "'");
+                    continue;
+                }
+                Path src = Paths.get(unescape(fields[1]));
+                Path dst = Paths.get(unescape(fields[2]));
+                if (BEGIN.equals(fields[0])) {
+                    _inFlight.put(src, dst);
+                } else if (DONE.equals(fields[0])) {
+                    _inFlight.remove(src);
+                    _done.add(src);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // new journal
+        }
+        logger.info("journal '" + _file + "': " + _done.size() + " files done, " + _inFlight.size()
+                + " files interrupted.");
+    }
+
+    /*
+     * the placing operations are atomic renames (or links) of fully written
+     * files, so an interrupted file is either in place, or its source is still
+     * there and it only needs its temporary file removed to be placed again. If
+     * its destination exists as well, the run placing it again checks whether
+     * the destination is the complete file (e.g. a move across file systems
+     * interrupted before the source was deleted).
+     */
+    private void recover(String tmpExt) throws IOException {
+        for (Map.Entry<Path, Path> e : _inFlight.entrySet()) {
+            Path src = e.getKey();
+            Path dst = e.getValue();
+            deleteTempFiles(dst, tmpExt);
+            if (!Files.exists(src) && Files.exists(dst)) {
+                logger.info("recovered '" + src + "' to '" + dst + "'");
+                done(src, dst);
+            } else {
+                logger.info("'" + src + "' was interrupted. It will be placed again.");
+                _interrupted.add(src);
+            }
+        }
+        _inFlight.clear();
+    }
+
+    /*
+     * the temporary files are named after the destination file, with a unique
+     * number in between (see Files.createTempFile).
+     */
+    private static void deleteTempFiles(Path dst, String tmpExt) throws IOException {
+        Path dir = dst.getParent();
+        if (dir == null || !Files.isDirectory(dir)) {
+            return;
+        }
+        String prefix = dst.getFileName().toString();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path f : stream) {
+                String name = f.getFileName().toString();
+                if (name.length() > prefix.length() + tmpExt.length() && name.startsWith(prefix)
+                        && name.endsWith(tmpExt)
+                        && isDigits(name.substring(prefix.length(), name.length() - tmpExt.length()))) {
+                    Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isDone(Path src) {
+        return _done.contains(key(src));
+    }
+
+    /**
+     * @return true if the file was begun but not done by a previous run, so its
+     *         destination, if it exists, may have been placed by that run.
+     */
+    public synchronized boolean isInterrupted(Path src) {
+        return _interrupted.contains(key(src));
+    }
+
+    public int doneCount() {
+        return _done.size();
+    }
+
+    public void begin(Path src, Path dst) throws IOException {
+        append(BEGIN, src, dst);
+    }
+
+    public void done(Path src, Path dst) throws IOException {
+        append(DONE, src, dst);
+        synchronized (this) {
+            _done.add(key(src));
+        }
+    }
+
+    private synchronized void append(String type, Path src, Path dst) throws IOException {
+        _writer.write(type + "\t" + escape(key(src).toString()) + "\t" + escape(key(dst).toString()) + "\n");
+        _writer.flush();
+    }
+
+    private static Path key(Path f) {
+        return f.toAbsolutePath().normalize();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_writer != null) {
+            _writer.close();
+            _writer = null;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package dcmtools.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of fixed size byte arrays. At most the given number of arrays are kept
+ * for reuse, arrays released beyond that are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int _bufferSize;
+    private final BlockingQueue<byte[]> _buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        _bufferSize = bufferSize;
+        _buffers = new ArrayBlockingQueue<byte[]>(maxPooled);
+    }
+
+    public int bufferSize() {
+        return _bufferSize;
+    }
+
+    public byte[] acquire() {
+        byte[] b = _buffers.poll();
+        return b == null ? new byte[_bufferSize] : b;
+    }
+
+    public void release(byte[] b) {
+        if (b != null && b.length == _bufferSize) {
+            _buffers.offer(b);
+        }
+    }
+
+}
@@ -17,4 +17,37 @@ public class ByteStreams {
         return total;
     }
 
+    /**
+     * @return true if both streams have the same content. They are read up to the
+     *         first difference.
+     */
+    public static boolean contentEquals(InputStream in1, InputStream in2) throws IOException {
+        byte[] buf1 = new byte[BUFFER_SIZE];
+        byte[] buf2 = new byte[BUFFER_SIZE];
+        while (true) {
+            int n1 = readFully(in1, buf1);
+            int n2 = readFully(in2, buf2);
+            if (n1 != n2) {
+                return false;
+            }
+            for (int i = 0; i < n1; i++) {
+                if (buf1[i] != buf2[i]) {
+                    return false;
+                }
+            }
+            if (n1 < buf1.length) {
+                return true;
+            }
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int n = 0;
+        int read;
+        while (n < buf.length && (read = in.read(buf, n, buf.length - n)) != -1) {
+            n += read;
+        }
+        return n;
+    }
+
 }
@@ -0,0 +1,126 @@
+package dcmtools.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory output stream backed by chunks borrowed from a {@link BufferPool}.
+ * Unlike {@link java.io.ByteArrayOutputStream}, it never copies what has been
+ * written when it grows. The chunks must be given back with {@link #release()}
+ * once the content is no longer needed.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final BufferPool _pool;
+    private final List<byte[]> _chunks = new ArrayList<byte[]>();
+    private byte[] _current;
+    private int _pos;
+    private long _size;
+
+    public ChunkedOutputStream(BufferPool pool) {
+        _pool = pool;
+    }
+
+    public long size() {
+        return _size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (_current == null || _pos == _current.length) {
+            nextChunk();
+        }
+        _current[_pos++] = (byte) b;
+        _size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (_current == null || _pos == _current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, _current.length - _pos);
+            System.arraycopy(b, off, _current, _pos, n);
+            _pos += n;
+            off += n;
+            len -= n;
+            _size += n;
+        }
+    }
+
+    private void nextChunk() {
+        _current = _pool.acquire();
+        _chunks.add(_current);
+        _pos = 0;
+    }
+
+    private int length(int chunk) {
+        return chunk == _chunks.size() - 1 ? _pos : _chunks.get(chunk).length;
+    }
+
+    public void writeTo(WritableByteChannel ch) throws IOException {
+        for (int i = 0; i < _chunks.size(); i++) {
+            ByteBuffer buf = ByteBuffer.wrap(_chunks.get(i), 0, length(i));
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < _chunks.size(); i++) {
+            out.write(_chunks.get(i), 0, length(i));
+        }
+    }
+
+    /**
+     * @return an input stream to read the content written so far.
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private int _chunk;
+            private int _off;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (_chunk < _chunks.size() && _off == length(_chunk)) {
+                    _chunk++;
+                    _off = 0;
+                }
+                if (_chunk >= _chunks.size()) {
+                    return -1;
+                }
+                int n = Math.min(len, length(_chunk) - _off);
+                System.arraycopy(_chunks.get(_chunk), _off, b, off, n);
+                _off += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Gives the chunks back to the pool. The stream is empty afterwards.
+     */
+    public void release() {
+        for (byte[] chunk : _chunks) {
+            _pool.release(chunk);
+        }
+        _chunks.clear();
+        _current = null;
+        _pos = 0;
+        _size = 0;
+    }
+
+}
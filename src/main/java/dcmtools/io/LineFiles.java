@@ -0,0 +1,63 @@
+package dcmtools.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utilities for the append-only files of records, one record per line, whose
+ * last line may be incomplete if the process was killed while writing it.
+ */
+public class LineFiles {
+
+    /**
+     * @return true if the file is empty or its last line is terminated.
+     */
+    public static boolean endsWithNewLine(Path file) throws IOException {
+        try (SeekableByteChannel ch = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            if (ch.size() == 0) {
+                return true;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            ch.position(ch.size() - 1);
+            return ch.read(buf) != 1 || buf.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Opens (or creates) the file, with its parent directories, to append lines
+     * to it. An incomplete last line is terminated first, so that the next line
+     * is not appended to it.
+     *
+     * @param file The file.
+     * @return the UTF-8 writer appending to the file.
+     * @throws IOException
+     */
+    public static Writer newAppendWriter(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND),
+                StandardCharsets.UTF_8));
+        try {
+            if (!endsWithNewLine(file)) {
+                writer.write("\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        return writer;
+    }
+
+}
@@ -0,0 +1,74 @@
+package dcmtools.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies every byte read from the underlying input stream to the output
+ * stream. Skipped bytes are read and copied as well, so the output always
+ * receives everything consumed from the input. Mark/reset is not supported.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream _out;
+    private byte[] _skipBuffer;
+
+    public TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        _out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            _out.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            _out.write(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (_skipBuffer == null) {
+            _skipBuffer = new byte[ByteStreams.BUFFER_SIZE];
+        }
+        long remaining = n;
+        while (remaining > 0) {
+            int read = read(_skipBuffer, 0, (int) Math.min(remaining, _skipBuffer.length));
+            if (read < 0) {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+
+}
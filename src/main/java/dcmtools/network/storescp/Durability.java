@@ -0,0 +1,34 @@
+package dcmtools.network.storescp;
+
+/**
+ * When the C-STORE-RSP is sent relative to the received object being written to
+ * disk.
+ */
+public enum Durability {
+
+    /**
+     * The object is written and renamed on the association thread before the
+     * response is sent. It is not fsynced.
+     */
+    SYNC,
+
+    /**
+     * The object is received into memory and handed to the I/O thread, which
+     * writes, fsyncs and renames it together with the other pending objects, then
+     * fsyncs the destination directory so that the rename is durable too. The
+     * response is sent once both are on stable storage.
+     */
+    FSYNC,
+
+    /**
+     * The object is received into memory and the response is sent as soon as it
+     * is queued to the I/O thread. Objects still queued are lost if the process
+     * dies.
+     */
+    ASYNC;
+
+    public boolean writeBehind() {
+        return this != SYNC;
+    }
+
+}
@@ -22,13 +22,19 @@ public class Options extends TransferOptions {
     private final Map<String, String> _sopClasses;
     private final boolean _acceptUnknown;
     private final int _status;
+    private final Durability _durability;
+    private final int _writeQueueCapacity;
+    private final int _maxAssociations;
+    private final int _maxThreads;
+    private final boolean _virtualThreads;
 
     protected Options(ApplicationEntitySpec localAE, Path directory, String pathPattern, boolean ignore,
             int maxSndPDULength, int maxRcvPDULength, int maxOpsInvoked, int maxOpsPerformed, boolean packPDV,
             int requestTimeout, int releaseTimeout, int idleTimeout, int socketCloseDelay, int socketSndBufferSize,
             int socketRcvBufferSize, boolean tcpNoDelay, int responseDelay, String[] tlsProtocols, String[] tlsCiphers,
             boolean tlsNoAuth, KeyStoreSpec keyStore, String keyPass, KeyStoreSpec trustStore,
-            Map<String, String> sopClasses, boolean acceptUnknown, int status) {
+            Map<String, String> sopClasses, boolean acceptUnknown, int status, Durability durability,
+            int writeQueueCapacity, int maxAssociations, int maxThreads, boolean virtualThreads) {
         super(localAE, maxSndPDULength, maxRcvPDULength, maxOpsInvoked, maxOpsPerformed, packPDV, requestTimeout,
                 releaseTimeout, idleTimeout, socketCloseDelay, socketSndBufferSize, socketRcvBufferSize, tcpNoDelay,
                 tlsProtocols, tlsCiphers, tlsNoAuth, keyStore, keyPass, trustStore);
@@ -39,6 +45,11 @@ public class Options extends TransferOptions {
         _sopClasses = sopClasses;
         _acceptUnknown = acceptUnknown;
         _status = status;
+        _durability = durability;
+        _writeQueueCapacity = writeQueueCapacity;
+        _maxAssociations = maxAssociations;
+        _maxThreads = maxThreads;
+        _virtualThreads = virtualThreads;
     }
 
     public final Path directory() {
@@ -69,6 +80,34 @@ public class Options extends TransferOptions {
         return _status;
     }
 
+    public final Durability durability() {
+        return _durability;
+    }
+
+    public final int writeQueueCapacity() {
+        return _writeQueueCapacity;
+    }
+
+    /**
+     * @return the maximum number of open associations. Further association
+     *         requests are rejected. 0 means unlimited.
+     */
+    public final int maxAssociations() {
+        return _maxAssociations;
+    }
+
+    /**
+     * @return the maximum number of association threads. The open associations
+     *         are limited to it too. 0 means unbounded.
+     */
+    public final int maxThreads() {
+        return _maxThreads;
+    }
+
+    public final boolean virtualThreads() {
+        return _virtualThreads;
+    }
+
     public static class Builder extends TransferOptions.Builder<Options> {
 
         private Path directory;
@@ -78,6 +117,11 @@ public class Options extends TransferOptions {
         private Map<String, String> sopClasses;
         private boolean acceptUnknown;
         private int status;
+        private Durability durability = Durability.SYNC;
+        private int writeQueueCapacity = WriteBehindWriter.DEFAULT_QUEUE_CAPACITY;
+        private int maxAssociations;
+        private int maxThreads;
+        private boolean virtualThreads;
 
         public Builder() {
             this.ae = new ApplicationEntitySpec(StoreSCP.DEFAULT_AE_TITLE, null, StoreSCP.DEFAULT_PORT);
@@ -139,6 +183,27 @@ public class Options extends TransferOptions {
             this.status = status;
         }
 
+        public final void setDurability(Durability durability) {
+            this.durability = durability == null ? Durability.SYNC : durability;
+        }
+
+        public final void setWriteQueueCapacity(int writeQueueCapacity) {
+            this.writeQueueCapacity = writeQueueCapacity > 0 ? writeQueueCapacity
+                    : WriteBehindWriter.DEFAULT_QUEUE_CAPACITY;
+        }
+
+        public final void setMaxAssociations(int maxAssociations) {
+            this.maxAssociations = maxAssociations > 0 ? maxAssociations : 0;
+        }
+
+        public final void setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads > 0 ? maxThreads : 0;
+        }
+
+        public final void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+
         @Override
         public Options build() {
             return new Options(this.ae, this.directory, this.pathPattern, this.ignore, this.maxSndPDULength,
@@ -146,7 +211,8 @@ public class Options extends TransferOptions {
                     this.releaseTimeout, this.idleTimeout, this.socketCloseDelay, this.socketSndBufferSize,
                     this.socketRcvBufferSize, this.tcpNoDelay, this.responseDelay, this.tlsProtocolsAsArray(),
                     this.tlsCiphersAsArray(), this.tlsNoAuth, this.keyStore, this.keyPass, this.trustStore,
-                    this.sopClasses, this.acceptUnknown, this.status);
+                    this.sopClasses, this.acceptUnknown, this.status, this.durability, this.writeQueueCapacity,
+                    this.maxAssociations, this.maxThreads, this.virtualThreads);
         }
 
     }
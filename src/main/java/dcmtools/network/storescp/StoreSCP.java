@@ -1,14 +1,23 @@
 package dcmtools.network.storescp;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -16,6 +25,7 @@ import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
@@ -29,9 +39,13 @@ import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.BasicCStoreSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.DicomServiceRegistry;
-import org.dcm4che3.util.AttributesFormat;
 
+import dcmtools.io.BufferPool;
+import dcmtools.io.ChunkedOutputStream;
+import dcmtools.io.TeeInputStream;
+import dcmtools.util.AttributesPathFormat;
 import dcmtools.util.DicomFileUtils;
+import dcmtools.util.DirectoryCache;
 
 public class StoreSCP {
 
@@ -65,8 +79,16 @@ public class StoreSCP {
 
 	public static final int DEFAULT_PORT = 11112;
 
+	/*
+	 * threads beyond the association threads, so that the association requests
+	 * over the limit are still read and rejected with A-ASSOCIATE-RJ.
+	 */
+	private static final int REJECTING_THREADS = 4;
+
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
 	private final Options _options;
-	private AttributesFormat _filePathFormat;
+	private AttributesPathFormat _filePathFormat;
 	private final Device _device;
 	private final ApplicationEntity _ae;
 	private final Connection _connection;
@@ -75,9 +97,13 @@ public class StoreSCP {
 	private ExecutorService _executor;
 	private ScheduledExecutorService _scheduledExecutor;
 
+	private final DirectoryCache _dirs = new DirectoryCache();
+	private final BufferPool _bufferPool;
+	private final WriteBehindWriter _writer;
+
 	public StoreSCP(Options options) throws IOException {
 		_options = options;
-		_filePathFormat = new AttributesFormat(
+		_filePathFormat = new AttributesPathFormat(
 				_options.pathPattern() == null ? DEFAULT_PATH_PATTERN : _options.pathPattern());
 		_device = new Device(DEFAULT_DEVICE_NAME);
 		_ae = new ApplicationEntity(_options.applicationEntity().title);
@@ -87,6 +113,16 @@ public class StoreSCP {
 		}
 		_connection.setPort(_options.applicationEntity().port);
 
+		// write-behind
+		if (_options.durability() != null && _options.durability().writeBehind()) {
+			_bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+			_writer = new WriteBehindWriter(_options.durability() == Durability.FSYNC,
+					_options.writeQueueCapacity(), _dirs);
+		} else {
+			_bufferPool = null;
+			_writer = null;
+		}
+
 		// cstore scp
 		_cstoreSCP = new BasicCStoreSCP("*") {
 
@@ -105,13 +141,14 @@ public class StoreSCP {
 					String transferSyntaxUID = pc.getTransferSyntax();
 
 					Path tmpFile = Paths.get(_options.directory().toString(), sopInstanceUID + PART_EXT);
+					Attributes fmi = as.createFileMetaInformation(sopInstanceUID, sopClassUID, transferSyntaxUID);
+					if (_writer != null) {
+						storeBehind(as, fmi, data, tmpFile);
+						return;
+					}
 					try {
-						storeTo(as, as.createFileMetaInformation(sopInstanceUID, sopClassUID, transferSyntaxUID), data,
-								tmpFile);
-						Attributes attrs = DicomFileUtils.getDicomAttributes(tmpFile);
-						Path dstFile = Paths.get(_options.directory().toString(),
-								_filePathFormat == null ? sopInstanceUID : _filePathFormat.format(attrs));
-						moveTo(as, tmpFile, dstFile);
+						Attributes attrs = storeTo(as, fmi, data, tmpFile);
+						moveTo(as, tmpFile, dstFile(sopInstanceUID, attrs));
 					} catch (Exception e) {
 						if (Files.deleteIfExists(tmpFile)) {
 							logger.info("{}: M-DELETE {}", as, tmpFile);
@@ -204,26 +241,287 @@ public class StoreSCP {
 		return uids;
 	}
 
-	private void storeTo(Association as, Attributes fmi, PDVInputStream data, Path file) throws IOException {
+	private Path dstFile(String sopInstanceUID, Attributes attrs) {
+		return Paths.get(_options.directory().toString(),
+				_filePathFormat == null ? sopInstanceUID : _filePathFormat.format(attrs));
+	}
+
+	private static boolean isDeflated(String tsuid) {
+		return UID.DeflatedExplicitVRLittleEndian.equals(tsuid) || UID.JPIPReferencedDeflate.equals(tsuid);
+	}
+
+	/*
+	 * writes the received object to the file. The header (as far as needed by the
+	 * path pattern) is parsed while it is being written, so the file does not need to be read
+	 * back to get the attributes for the path pattern.
+	 */
+	private Attributes storeTo(Association as, Attributes fmi, PDVInputStream data, Path file) throws IOException {
 		logger.info("{}: M-WRITE {}", as, file);
-		Path dir = file.getParent();
-		if (dir != null && !Files.exists(dir)) {
-			Files.createDirectories(dir);
+		_dirs.createParentDirectories(file);
+		if (isDeflated(fmi.getString(Tag.TransferSyntaxUID))) {
+			// the inflater reads ahead with mark/reset: read the written file instead
+			try (DicomOutputStream out = new DicomOutputStream(newOutputStream(file), UID.ExplicitVRLittleEndian)) {
+				out.writeFileMetaInformation(fmi);
+				data.copyTo(out);
+			}
+			return DicomFileUtils.getDicomAttributes(file, stopTag());
 		}
-		try (DicomOutputStream out = new DicomOutputStream(Files.newOutputStream(file), UID.ExplicitVRLittleEndian)) {
-			out.writeFileMetaInformation(fmi);
-			data.copyTo(out);
-		} finally {
+		try (OutputStream out = new BufferedOutputStream(newOutputStream(file))) {
+			return receive(fmi, data, out);
 		}
 	}
 
-	private static void moveTo(Association as, Path fromFile, Path toFile) throws IOException {
+	/*
+	 * receives the object into pooled memory buffers and queues it to the I/O
+	 * thread. With FSYNC durability, waits until it is on disk.
+	 */
+	private void storeBehind(Association as, Attributes fmi, PDVInputStream data, Path tmpFile)
+			throws IOException {
+		SpillableOutputStream buffer = new SpillableOutputStream(as, tmpFile);
+		Future<Path> written;
+		try {
+			Attributes attrs;
+			if (isDeflated(fmi.getString(Tag.TransferSyntaxUID))) {
+				DicomOutputStream out = new DicomOutputStream(buffer, UID.ExplicitVRLittleEndian);
+				out.writeFileMetaInformation(fmi);
+				data.copyTo(out);
+				out.flush();
+				if (buffer.spilled()) {
+					buffer.close();
+					attrs = DicomFileUtils.getDicomAttributes(tmpFile, stopTag());
+				} else {
+					try (DicomInputStream dis = new DicomInputStream(buffer.memory.newInputStream())) {
+						attrs = DicomFileUtils.getDicomAttributes(dis, stopTag(), false, true);
+					}
+				}
+			} else {
+				attrs = receive(fmi, data, buffer);
+			}
+			buffer.close();
+			Path dstFile = dstFile(fmi.getString(Tag.MediaStorageSOPInstanceUID), attrs);
+			written = _writer.submit(as, buffer.spilled() ? null : buffer.memory, buffer.reserved, tmpFile,
+					dstFile);
+		} catch (Exception e) {
+			buffer.discard();
+			throw new DicomServiceException(Status.ProcessingFailure, e);
+		}
+		if (_options.durability() == Durability.FSYNC) {
+			try {
+				written.get();
+			} catch (Exception e) {
+				throw new DicomServiceException(Status.ProcessingFailure, e);
+			}
+		}
+	}
+
+	/*
+	 * an object received for the write-behind I/O thread. It is kept in pooled
+	 * buffers while the writer has room for it, and written to its temporary
+	 * file by the association thread beyond that.
+	 */
+	private class SpillableOutputStream extends OutputStream {
+
+		final ChunkedOutputStream memory = new ChunkedOutputStream(_bufferPool);
+		private final Association _as;
+		private final Path _file;
+		long reserved;
+		private OutputStream _spill;
+
+		SpillableOutputStream(Association as, Path file) {
+			_as = as;
+			_file = file;
+		}
+
+		boolean spilled() {
+			return _spill != null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (_spill == null && !reserve(memory.size() + 1)) {
+				spill();
+			}
+			if (_spill != null) {
+				_spill.write(b);
+			} else {
+				memory.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (_spill == null && !reserve(memory.size() + len)) {
+				spill();
+			}
+			if (_spill != null) {
+				_spill.write(b, off, len);
+			} else {
+				memory.write(b, off, len);
+			}
+		}
+
+		/*
+		 * reserves whole buffers, as they are taken from the pool.
+		 */
+		private boolean reserve(long size) {
+			if (size <= reserved) {
+				return true;
+			}
+			int bufferSize = _bufferPool.bufferSize();
+			long more = (size - reserved + bufferSize - 1) / bufferSize * bufferSize;
+			if (!_writer.tryReserve(more)) {
+				return false;
+			}
+			reserved += more;
+			return true;
+		}
+
+		private void spill() throws IOException {
+			logger.info("{}: M-WRITE {} (write-behind buffers full)", _as, _file);
+			_dirs.createParentDirectories(_file);
+			_spill = new BufferedOutputStream(newOutputStream(_file));
+			memory.writeTo(_spill);
+			release();
+		}
+
+		private void release() {
+			memory.release();
+			_writer.release(reserved);
+			reserved = 0;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (_spill != null) {
+				_spill.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_spill != null) {
+				_spill.close();
+			}
+		}
+
+		/*
+		 * releases the buffers, or deletes the file, of an object not submitted.
+		 */
+		void discard() {
+			release();
+			if (_spill != null) {
+				try {
+					_spill.close();
+					Files.deleteIfExists(_file);
+				} catch (IOException e) {
+					logger.warn("{}: M-DELETE {} failed!", _as, _file, e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * reads as far as needed by the path pattern.
+	 */
+	private int stopTag() {
+		return _filePathFormat == null ? Tag.PixelData : _filePathFormat.stopTag();
+	}
+
+	/*
+	 * writes the file meta information and the received dataset to the output,
+	 * parsing the dataset up to the last attribute needed by the path pattern on
+	 * the way.
+	 */
+	private Attributes receive(Attributes fmi, PDVInputStream data, OutputStream out) throws IOException {
+		DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+		dos.writeFileMetaInformation(fmi);
+		dos.flush();
+		@SuppressWarnings("resource")
+		DicomInputStream dis = new DicomInputStream(new TeeInputStream(data, out),
+				fmi.getString(Tag.TransferSyntaxUID));
+		Attributes attrs = DicomFileUtils.getDicomAttributes(dis, stopTag(), false, false);
+		data.copyTo(out);
+		attrs.addAll(fmi);
+		return attrs;
+	}
+
+	/*
+	 * opens the file for writing. If its cached parent directory has been
+	 * removed in the meantime, re-creates it and retries.
+	 */
+	private OutputStream newOutputStream(Path file) throws IOException {
+		try {
+			return Files.newOutputStream(file);
+		} catch (NoSuchFileException e) {
+			_dirs.invalidate(file.getParent());
+			_dirs.createParentDirectories(file);
+			return Files.newOutputStream(file);
+		}
+	}
+
+	private void moveTo(Association as, Path fromFile, Path toFile) throws IOException {
 		logger.info("{}: M-RENAME {} to {}", as, fromFile, toFile);
-		Path toDir = toFile.getParent();
-		if (toDir != null && !Files.exists(toDir)) {
-			Files.createDirectories(toDir);
+		_dirs.createParentDirectories(toFile);
+		try {
+			Files.move(fromFile, toFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			if (!Files.exists(fromFile)) {
+				throw e;
+			}
+			_dirs.invalidate(toFile.getParent());
+			_dirs.createParentDirectories(toFile);
+			Files.move(fromFile, toFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * creates the executor of the device, which runs the connection listener and
+	 * the association reader threads: virtual threads if requested and
+	 * available, a bounded pool if the number of threads is limited, or a cached
+	 * pool otherwise. The bounded pool does not queue: a reader waiting for a
+	 * thread would leave its peer hanging on an accepted socket.
+	 */
+	private ExecutorService newExecutor() {
+		if (_options.virtualThreads()) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				logger.warn("virtual threads are not supported by this Java runtime. Using platform threads.");
+			}
+		}
+		if (_options.maxThreads() <= 0) {
+			return Executors.newCachedThreadPool();
+		}
+		// one more for the connection listener
+		int nbThreads = _options.maxThreads() + 1 + REJECTING_THREADS;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads, nbThreads, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						logger.warn("rejected task: all {} threads are busy.", executor.getMaximumPoolSize());
+						throw new RejectedExecutionException("StoreSCP thread pool is saturated");
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/*
+	 * with a bounded pool, the open associations are limited to its association
+	 * threads, so that the requests beyond are rejected with A-ASSOCIATE-RJ.
+	 */
+	private int maxOpenAssociations() {
+		if (_options.maxThreads() <= 0 || !(_executor instanceof ThreadPoolExecutor)) {
+			return _options.maxAssociations();
+		}
+		if (_options.maxAssociations() > 0 && _options.maxAssociations() <= _options.maxThreads()) {
+			return _options.maxAssociations();
+		}
+		if (_options.maxAssociations() > 0) {
+			logger.warn("max associations ({}) is greater than max threads ({}): limited to {}.",
+					_options.maxAssociations(), _options.maxThreads(), _options.maxThreads());
 		}
-		Files.move(fromFile, toFile, StandardCopyOption.REPLACE_EXISTING);
+		return _options.maxThreads();
 	}
 
 	public void start() {
@@ -234,10 +532,27 @@ public class StoreSCP {
 			throw new IllegalStateException(this.getClass().getSimpleName() + ": scheduled executor already started.");
 		}
 		try {
-			_executor = Executors.newCachedThreadPool();
+			_executor = newExecutor();
 			_scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
 			_device.setScheduledExecutor(_scheduledExecutor);
 			_device.setExecutor(_executor);
+			if (_writer != null) {
+				_writer.start();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							_writer.close();
+						} catch (InterruptedException e) {
+							logger.warn("interrupted while writing the pending objects", e);
+						}
+					}
+				});
+			}
+			int maxAssociations = maxOpenAssociations();
+			if (maxAssociations > 0) {
+				_device.setLimitOpenAssociations(maxAssociations);
+			}
 			_device.bindConnections();
 			System.out.println("Running storageSCP server: " + _options.applicationEntity());
 			System.out.println("    AE Title: " + _options.applicationEntity().title);
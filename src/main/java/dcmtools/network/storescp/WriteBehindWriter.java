@@ -0,0 +1,308 @@
+package dcmtools.network.storescp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dcmtools.io.ChunkedOutputStream;
+import dcmtools.util.DirectoryCache;
+
+/**
+ * Writes the received objects on a dedicated I/O thread. The pending objects
+ * are taken from the queue in batches: each is written to its temporary file,
+ * then (if fsync is enabled) all of them are forced to disk before they are
+ * renamed to their destination paths, and the destination directories are
+ * forced to disk after the renames, before the futures are completed.
+ *
+ * The bytes held in memory by the objects being received and queued are
+ * bounded: an object that cannot reserve more is spilled to its temporary file
+ * by the association thread, and only forced and renamed here.
+ */
+public class WriteBehindWriter {
+
+    private static final Logger logger = LogManager.getLogger(WriteBehindWriter.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final int MAX_BATCH_SIZE = 32;
+
+    /**
+     * A quarter of the heap, at least 64 MiB.
+     */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = Math.max(64L * 1024 * 1024,
+            Runtime.getRuntime().maxMemory() / 4);
+
+    private static final boolean IS_WINDOWS = System.getProperty("os.name", "").toLowerCase()
+            .startsWith("windows");
+
+    private static class Task {
+        final Object as;
+        final ChunkedOutputStream data;
+        final long reserved;
+        final Path tmpFile;
+        final Path dstFile;
+        final CompletableFuture<Path> future = new CompletableFuture<Path>();
+        FileChannel channel;
+
+        Task(Object as, ChunkedOutputStream data, long reserved, Path tmpFile, Path dstFile) {
+            this.as = as;
+            this.data = data;
+            this.reserved = reserved;
+            this.tmpFile = tmpFile;
+            this.dstFile = dstFile;
+        }
+    }
+
+    private final boolean _fsync;
+    private final DirectoryCache _dirs;
+    private final BlockingQueue<Task> _queue;
+    private final Semaphore _buffered = new Semaphore(kib(DEFAULT_MAX_BUFFERED_BYTES));
+    private final Thread _thread;
+    private volatile boolean _closed;
+
+    /**
+     * Constructor.
+     *
+     * @param fsync         Force the files to disk before renaming them.
+     * @param queueCapacity Maximum number of objects waiting to be written. The
+     *                      association threads block when it is reached.
+     * @param dirs          The cache of the existing directories.
+     */
+    public WriteBehindWriter(boolean fsync, int queueCapacity, DirectoryCache dirs) {
+        _fsync = fsync;
+        _dirs = dirs;
+        _queue = new ArrayBlockingQueue<Task>(queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY);
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                WriteBehindWriter.this.run();
+            }
+        }, "storescp-writer");
+        _thread.setDaemon(true);
+    }
+
+    public void start() {
+        _thread.start();
+    }
+
+    private static int kib(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024);
+    }
+
+    /**
+     * Reserves room for more bytes of an object in memory, without waiting.
+     *
+     * @param bytes The number of bytes, a multiple of 1 KiB.
+     * @return false if the maximum of buffered bytes would be exceeded.
+     */
+    public boolean tryReserve(long bytes) {
+        return _buffered.tryAcquire(kib(bytes));
+    }
+
+    /**
+     * Gives back the bytes reserved by an object that is not submitted.
+     */
+    public void release(long bytes) {
+        _buffered.release(kib(bytes));
+    }
+
+    /**
+     * Queues the object to be written. The data and the bytes reserved for it
+     * are released once written.
+     *
+     * @param as       The association (for logging).
+     * @param data     The object data, including the file meta information, or
+     *                 null if it has been written to the temporary file already.
+     * @param reserved The bytes reserved for the data.
+     * @param tmpFile  The temporary file.
+     * @param dstFile  The destination file.
+     * @return a future completed once the file has been renamed to its
+     *         destination.
+     * @throws InterruptedException
+     */
+    public Future<Path> submit(Object as, ChunkedOutputStream data, long reserved, Path tmpFile, Path dstFile)
+            throws InterruptedException {
+        if (_closed) {
+            throw new IllegalStateException("writer is closed");
+        }
+        Task task = new Task(as, data, reserved, tmpFile, dstFile);
+        _queue.put(task);
+        return task.future;
+    }
+
+    /**
+     * Writes the pending objects and stops the I/O thread.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        _closed = true;
+        _thread.join();
+    }
+
+    private void run() {
+        List<Task> batch = new ArrayList<Task>(MAX_BATCH_SIZE);
+        while (!(_closed && _queue.isEmpty())) {
+            try {
+                Task task = _queue.poll(100, TimeUnit.MILLISECONDS);
+                if (task == null) {
+                    continue;
+                }
+                batch.add(task);
+                _queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Task> batch) {
+        for (Task task : batch) {
+            try {
+                if (task.data == null) {
+                    // spilled by the association thread
+                    task.channel = FileChannel.open(task.tmpFile, StandardOpenOption.WRITE);
+                    continue;
+                }
+                logger.info("{}: M-WRITE {}", task.as, task.tmpFile);
+                _dirs.createParentDirectories(task.tmpFile);
+                task.channel = open(task.tmpFile);
+                task.data.writeTo(task.channel);
+            } catch (Throwable e) {
+                fail(task, e);
+            } finally {
+                if (task.data != null) {
+                    task.data.release();
+                }
+                release(task.reserved);
+            }
+        }
+        List<Task> moved = new ArrayList<Task>(batch.size());
+        for (Task task : batch) {
+            if (task.channel == null) {
+                continue;
+            }
+            try {
+                if (_fsync) {
+                    task.channel.force(true);
+                }
+                task.channel.close();
+                task.channel = null;
+                logger.info("{}: M-RENAME {} to {}", task.as, task.tmpFile, task.dstFile);
+                move(task.tmpFile, task.dstFile);
+                moved.add(task);
+            } catch (Throwable e) {
+                fail(task, e);
+            }
+        }
+        if (_fsync) {
+            forceDirectories(moved);
+        }
+        for (Task task : moved) {
+            if (!task.future.isDone()) {
+                task.future.complete(task.dstFile);
+            }
+        }
+    }
+
+    /*
+     * a rename is only durable once its directory entry is on disk: each
+     * destination directory of the batch is forced once.
+     */
+    private static void forceDirectories(List<Task> tasks) {
+        Set<Path> dirs = new LinkedHashSet<Path>();
+        for (Task task : tasks) {
+            dirs.add(task.dstFile.toAbsolutePath().getParent());
+        }
+        for (Path dir : dirs) {
+            try {
+                forceDirectory(dir);
+            } catch (Throwable e) {
+                for (Task task : tasks) {
+                    if (dir.equals(task.dstFile.toAbsolutePath().getParent())) {
+                        logger.error("{}: failed to force {} to disk", task.as, dir, e);
+                        task.future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * directories cannot be opened on Windows, where the renames are left to
+     * the file system journal.
+     */
+    private static void forceDirectory(Path dir) throws IOException {
+        if (IS_WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private FileChannel open(Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // cached parent directory removed in the meantime
+            _dirs.invalidate(file.getParent());
+            _dirs.createParentDirectories(file);
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private void move(Path from, Path to) throws IOException {
+        _dirs.createParentDirectories(to);
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            if (!Files.exists(from)) {
+                throw e;
+            }
+            _dirs.invalidate(to.getParent());
+            _dirs.createParentDirectories(to);
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void fail(Task task, Throwable e) {
+        logger.error("{}: failed to write {}", task.as, task.dstFile, e);
+        try {
+            if (task.channel != null) {
+                task.channel.close();
+                task.channel = null;
+            }
+            if (Files.deleteIfExists(task.tmpFile)) {
+                logger.info("{}: M-DELETE {}", task.as, task.tmpFile);
+            }
+        } catch (IOException ioe) {
+            logger.warn("{}: M-DELETE {} failed!", task.as, task.tmpFile, ioe);
+        }
+        task.future.completeExceptionally(e);
+    }
+
+}
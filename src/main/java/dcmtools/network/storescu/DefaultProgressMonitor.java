@@ -8,11 +8,15 @@ public class DefaultProgressMonitor implements ProgressMonitor {
     private final AtomicInteger _totalFiles;
     private final AtomicInteger _transferredFiles;
     private final AtomicLong _transferredBytes;
+    private final AtomicInteger _window;
+    private final AtomicInteger _peakWindow;
 
     public DefaultProgressMonitor(int totalFiles) {
         _totalFiles = new AtomicInteger(totalFiles);
         _transferredFiles = new AtomicInteger(0);
         _transferredBytes = new AtomicLong(0);
+        _window = new AtomicInteger(0);
+        _peakWindow = new AtomicInteger(0);
     }
 
     public DefaultProgressMonitor() {
@@ -37,6 +41,10 @@ public class DefaultProgressMonitor implements ProgressMonitor {
         _totalFiles.set(totalFiles);
     }
 
+    public void incTotalFiles() {
+        _totalFiles.getAndIncrement();
+    }
+
     public void incTransferredBytes(long increment) {
         _transferredBytes.getAndAdd(increment);
     }
@@ -45,13 +53,21 @@ public class DefaultProgressMonitor implements ProgressMonitor {
         _transferredFiles.getAndIncrement();
     }
 
+    public void incWindow(int delta) {
+        int window = _window.addAndGet(delta);
+        int peak;
+        while (window > (peak = _peakWindow.get()) && !_peakWindow.compareAndSet(peak, window)) {
+            // retry
+        }
+    }
+
     public void end() {
 
     }
 
     @Override
     public Progress progress() {
-        return new Progress(transferredBytes(), transferredFiles(), totalFiles());
+        return new Progress(transferredBytes(), transferredFiles(), totalFiles(), _window.get(), _peakWindow.get());
     }
 
 }
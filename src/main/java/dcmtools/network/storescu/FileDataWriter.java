@@ -0,0 +1,41 @@
+package dcmtools.network.storescu;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.PDVOutputStream;
+
+/**
+ * Writes the dataset of a DICOM file as is, starting at the dataset offset.
+ * The file channel is positioned at the offset instead of reading through the
+ * preamble and the file meta information, and the bytes are read straight into
+ * the PDU buffer of the association, without an intermediate buffered stream.
+ */
+public class FileDataWriter implements DataWriter {
+
+    private final Path _file;
+    private final long _offset;
+
+    public FileDataWriter(Path file, long offset) {
+        _file = file;
+        _offset = offset;
+    }
+
+    @Override
+    public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+        try (FileChannel ch = FileChannel.open(_file, StandardOpenOption.READ)) {
+            long remaining = ch.size() - _offset;
+            ch.position(_offset);
+            while (remaining > 0) {
+                int len = (int) Math.min(remaining, Integer.MAX_VALUE);
+                out.copyFrom(Channels.newInputStream(ch), len);
+                remaining -= len;
+            }
+        }
+    }
+
+}
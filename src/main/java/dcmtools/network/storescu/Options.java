@@ -12,6 +12,7 @@ import java.util.Properties;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.codec.ImageWriterFactory;
 import org.dcm4che3.net.Priority;
 import org.dcm4che3.net.pdu.CommonExtendedNegotiation;
 
@@ -37,6 +38,18 @@ public class Options extends TransferOptions {
     private final int _priority;
     private final Attributes _attributes;
     private final Map<String, CommonExtendedNegotiation> _relatedSOPClasses;
+    private final int _associations;
+    private final int _scanThreads;
+    private final boolean _streaming;
+    private final Path _scanIndex;
+    private final boolean _adaptiveWindow;
+    private final int _transcoders;
+    private final String _compress;
+    private final Path _ledger;
+    private final boolean _resume;
+    private final int _retries;
+    private final long _retryDelay;
+    private final Path _failureReport;
 
     public Options(ApplicationEntitySpec ae, ApplicationEntitySpec remoteAE, HttpProxySpec httpProxy, String username,
             String userPassword, boolean userRSP, int maxSndPDULength, int maxRcvPDULength, int maxOpsInvoked,
@@ -45,7 +58,9 @@ public class Options extends TransferOptions {
             int socketCloseDelay, int socketSndBufferSize, int socketRcvBufferSize, boolean tcpNoDelay,
             String[] tlsProtocols, String[] tlsCiphers, boolean tlsNoAuth, KeyStoreSpec keyStore, String keyPass,
             KeyStoreSpec trustStore, Map<String, CommonExtendedNegotiation> relatedSOPClasses, String uidSuffix,
-            int priority, Attributes attributes) {
+            int priority, Attributes attributes, int associations, int scanThreads, boolean streaming, Path scanIndex,
+            boolean adaptiveWindow, int transcoders, String compress, Path ledger, boolean resume, int retries,
+            long retryDelay, Path failureReport) {
         super(ae, maxSndPDULength, maxRcvPDULength, maxOpsInvoked, maxOpsPerformed, packPDV, requestTimeout,
                 releaseTimeout, idleTimeout, socketCloseDelay, socketSndBufferSize, socketRcvBufferSize, tcpNoDelay,
                 tlsProtocols, tlsCiphers, tlsNoAuth, keyStore, keyPass, trustStore);
@@ -63,6 +78,18 @@ public class Options extends TransferOptions {
         _priority = priority;
         _attributes = attributes;
         _relatedSOPClasses = relatedSOPClasses;
+        _associations = associations;
+        _scanThreads = scanThreads;
+        _streaming = streaming;
+        _scanIndex = scanIndex;
+        _adaptiveWindow = adaptiveWindow;
+        _transcoders = transcoders;
+        _compress = compress;
+        _ledger = ledger;
+        _resume = resume;
+        _retries = retries;
+        _retryDelay = retryDelay;
+        _failureReport = failureReport;
     }
 
     public final ApplicationEntitySpec remoteApplicationEntity() {
@@ -125,6 +152,83 @@ public class Options extends TransferOptions {
         return _relatedSOPClasses == null ? null : Collections.unmodifiableMap(_relatedSOPClasses);
     }
 
+    public final int associations() {
+        return _associations;
+    }
+
+    public final int scanThreads() {
+        return _scanThreads;
+    }
+
+    public final boolean streaming() {
+        return _streaming;
+    }
+
+    public final Path scanIndex() {
+        return _scanIndex;
+    }
+
+    public final boolean adaptiveWindow() {
+        return _adaptiveWindow;
+    }
+
+    /**
+     * @return number of worker threads preparing (decompressing and encoding)
+     *         the data sets ahead of the senders. 0 if they are prepared by the
+     *         senders.
+     */
+    public final int transcoders() {
+        return _transcoders;
+    }
+
+    /**
+     * @return the lossless compressed transfer syntax to propose for the
+     *         uncompressed files, and to compress them into if accepted. null if
+     *         the files are not compressed.
+     */
+    public final String compress() {
+        return _compress;
+    }
+
+    /**
+     * @return the ledger file to record the instances acknowledged by the remote
+     *         AE. null if not recorded.
+     */
+    public final Path ledger() {
+        return _ledger;
+    }
+
+    /**
+     * @return true to skip the instances already recorded in the ledger.
+     */
+    public final boolean resume() {
+        return _resume;
+    }
+
+    /**
+     * @return the number of times the files not stored (for a reason that may
+     *         not last) are sent again.
+     */
+    public final int retries() {
+        return _retries;
+    }
+
+    /**
+     * @return the delay in milliseconds before the first retry. It is doubled
+     *         for each following retry, up to a minute.
+     */
+    public final long retryDelay() {
+        return _retryDelay;
+    }
+
+    /**
+     * @return the file to save the files not stored in the end. null if not
+     *         saved.
+     */
+    public final Path failureReport() {
+        return _failureReport;
+    }
+
     public static class Builder extends TransferOptions.Builder<Options> {
         private ApplicationEntitySpec remoteAE;
         private HttpProxySpec httpProxy;
@@ -141,12 +245,37 @@ public class Options extends TransferOptions {
         private int priority = Priority.NORMAL;
         private Attributes attributes;
         private Map<String, CommonExtendedNegotiation> relatedSOPClasses;
+        private int associations = 1;
+        private int scanThreads = 1;
+        private boolean streaming;
+        private Path scanIndex;
+        private boolean adaptiveWindow;
+        private int transcoders;
+        private String compress;
+        private Path ledger;
+        private boolean resume;
+        private int retries;
+        private long retryDelay = 1000L;
+        private Path failureReport;
 
         public Builder() {
             this.ae = new ApplicationEntitySpec(StoreSCU.DEFAULT_AE_TITLE);
         }
 
         public Options build() throws IllegalArgumentException {
+            if (this.resume && this.ledger == null) {
+                throw new IllegalArgumentException("No ledger to resume from.");
+            }
+            if (this.retries < 0) {
+                throw new IllegalArgumentException("Invalid number of retries: " + this.retries);
+            }
+            if (this.retryDelay < 0) {
+                throw new IllegalArgumentException("Invalid retry delay: " + this.retryDelay);
+            }
+            if (this.compress != null && this.transcoders <= 0) {
+                // the files are compressed by the transcoders
+                this.transcoders = Runtime.getRuntime().availableProcessors();
+            }
 
             return new Options(this.ae, this.remoteAE, this.httpProxy, this.username, this.userPassword, this.userRSP,
                     this.maxSndPDULength, this.maxRcvPDULength, this.maxOpsInvoked, this.maxOpsPerformed, this.packPDV,
@@ -154,7 +283,10 @@ public class Options extends TransferOptions {
                     this.responseTimeout, this.retrieveTimeout, this.retrieveTimeoutTotal, this.idleTimeout,
                     this.socketCloseDelay, this.socketSndBufferSize, this.socketRcvBufferSize, this.tcpNoDelay,
                     this.tlsProtocolsAsArray(), this.tlsCiphersAsArray(), this.tlsNoAuth, this.keyStore, this.keyPass,
-                    this.trustStore, this.relatedSOPClasses, this.uidSuffix, this.priority, this.attributes);
+                    this.trustStore, this.relatedSOPClasses, this.uidSuffix, this.priority, this.attributes,
+                    this.associations, this.scanThreads, this.streaming, this.scanIndex,
+                    this.adaptiveWindow, this.transcoders, this.compress, this.ledger, this.resume,
+                    this.retries, this.retryDelay, this.failureReport);
 
         }
 
@@ -249,6 +381,95 @@ public class Options extends TransferOptions {
             }
         }
 
+        public final void setAssociations(int associations) {
+            this.associations = associations > 0 ? associations : 1;
+        }
+
+        public final void setScanThreads(int scanThreads) {
+            this.scanThreads = scanThreads > 0 ? scanThreads : 1;
+        }
+
+        public final void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        public final void setScanIndex(Path scanIndex) {
+            this.scanIndex = scanIndex;
+        }
+
+        public final void setAdaptiveWindow(boolean adaptiveWindow) {
+            this.adaptiveWindow = adaptiveWindow;
+        }
+
+        public final void setTranscoders(int transcoders) {
+            this.transcoders = transcoders > 0 ? transcoders : 0;
+        }
+
+        /**
+         * Sets the transfer syntax to compress the uncompressed files into.
+         *
+         * @param compress rle (RLE Lossless), jpeg-ls (JPEG-LS Lossless),
+         *                 jpeg-lossless (JPEG Lossless, First-Order Prediction),
+         *                 deflate (Deflated Explicit VR Little Endian), or one of
+         *                 their transfer syntax UIDs. null to disable compression.
+         * @throws IllegalArgumentException if the transfer syntax is not supported,
+         *                                  or no image writer is available for it.
+         */
+        public final void setCompress(String compress) throws IllegalArgumentException {
+            if (compress == null) {
+                this.compress = null;
+            } else if ("rle".equalsIgnoreCase(compress) || UID.RLELossless.equals(compress)) {
+                this.compress = UID.RLELossless;
+            } else if ("jpeg-ls".equalsIgnoreCase(compress) || UID.JPEGLSLossless.equals(compress)) {
+                this.compress = UID.JPEGLSLossless;
+            } else if ("jpeg-lossless".equalsIgnoreCase(compress) || UID.JPEGLossless.equals(compress)) {
+                this.compress = UID.JPEGLossless;
+            } else if ("deflate".equalsIgnoreCase(compress) || UID.DeflatedExplicitVRLittleEndian.equals(compress)) {
+                this.compress = UID.DeflatedExplicitVRLittleEndian;
+            } else {
+                throw new IllegalArgumentException("Unsupported compression: " + compress);
+            }
+            if (this.compress != null && !UID.DeflatedExplicitVRLittleEndian.equals(this.compress)) {
+                checkImageWriter(this.compress, compress);
+            }
+        }
+
+        /*
+         * the pixel data is compressed by an image writer of the image codec
+         * configuration, which must be found on the class path.
+         */
+        private static void checkImageWriter(String tsuid, String compress) throws IllegalArgumentException {
+            ImageWriterFactory.ImageWriterParam param = ImageWriterFactory.getImageWriterParam(tsuid);
+            if (param == null) {
+                throw new IllegalArgumentException("No image writer configured for compression: " + compress);
+            }
+            try {
+                ImageWriterFactory.getImageWriter(param).dispose();
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("No image writer available for compression: " + compress, e);
+            }
+        }
+
+        public final void setLedger(Path ledger) {
+            this.ledger = ledger;
+        }
+
+        public final void setResume(boolean resume) {
+            this.resume = resume;
+        }
+
+        public final void setRetries(int retries) {
+            this.retries = retries;
+        }
+
+        public final void setRetryDelay(long retryDelay) {
+            this.retryDelay = retryDelay;
+        }
+
+        public final void setFailureReport(Path failureReport) {
+            this.failureReport = failureReport;
+        }
+
         public final void setAttributes(Attributes attributes) {
             this.attributes = attributes;
         }
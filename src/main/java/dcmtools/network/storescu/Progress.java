@@ -8,14 +8,36 @@ public class Progress {
 
     public final long transferredBytes;
 
-    public Progress(long transferredBytes, int transferredFiles, int totalFiles) {
+    /**
+     * The current C-STORE window (summed over the associations), 0 if the
+     * window is not adaptive.
+     */
+    public final int window;
+
+    /**
+     * The largest C-STORE window reached.
+     */
+    public final int peakWindow;
+
+    public Progress(long transferredBytes, int transferredFiles, int totalFiles, int window, int peakWindow) {
         this.transferredBytes = transferredBytes;
         this.transferredFiles = transferredFiles;
         this.totalFiles = totalFiles;
+        this.window = window;
+        this.peakWindow = peakWindow;
+    }
+
+    public Progress(long transferredBytes, int transferredFiles, int totalFiles) {
+        this(transferredBytes, transferredFiles, totalFiles, 0, 0);
     }
 
     public String toString() {
-        return String.format("%d/%d files (%d bytes)", this.transferredFiles, this.totalFiles, this.transferredBytes);
+        String s = String.format("%d/%d files (%d bytes)", this.transferredFiles, this.totalFiles,
+                this.transferredBytes);
+        if (this.peakWindow > 0) {
+            s += String.format(", window %d (peak %d)", this.window, this.peakWindow);
+        }
+        return s;
     }
 
 }
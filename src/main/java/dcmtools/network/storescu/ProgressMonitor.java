@@ -4,10 +4,24 @@ public interface ProgressMonitor {
 
     void begin(int totalFiles);
 
+    /**
+     * Counts a file found after {@link #begin(int)}, when the files are sent as
+     * they are scanned.
+     */
+    default void incTotalFiles() {
+    }
+
     void incTransferredBytes(long increment);
 
     void incTransferredFiles();
 
+    /**
+     * Updates the number of outstanding C-STORE requests allowed, when the
+     * window is adaptive.
+     */
+    default void incWindow(int delta) {
+    }
+
     void end();
 
     Progress progress();
@@ -0,0 +1,39 @@
+package dcmtools.network.storescu;
+
+import dcmtools.util.DicomFileInfo;
+
+/**
+ * A file not stored by the remote AE.
+ */
+public class SendFailure {
+
+    public final DicomFileInfo dicomFile;
+
+    /**
+     * The status of the C-STORE-RSP, -1 if there was no response.
+     */
+    public final int status;
+
+    public final String message;
+
+    /**
+     * false if sending the file again would fail the same way, e.g. the file
+     * cannot be read or the remote AE does not support its SOP class.
+     */
+    public final boolean retryable;
+
+    public SendFailure(DicomFileInfo dicomFile, int status, String message, boolean retryable) {
+        this.dicomFile = dicomFile;
+        this.status = status;
+        this.message = message;
+        this.retryable = retryable;
+    }
+
+    @Override
+    public String toString() {
+        return dicomFile.path + "\t" + dicomFile.mediaStorageSOPInstanceUID + "\t"
+                + (status < 0 ? "-" : String.format("%04X", status)) + "\t" + (retryable ? "RETRYABLE" : "PERMANENT")
+                + (message == null ? "" : "\t" + message.replace('\t', ' ').replace('\n', ' '));
+    }
+
+}
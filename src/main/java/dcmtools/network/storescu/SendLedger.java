@@ -0,0 +1,112 @@
+package dcmtools.network.storescu;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dcmtools.io.LineFiles;
+import dcmtools.util.DicomFileInfo;
+
+/**
+ * Append-only ledger of the instances acknowledged by the remote AE, so that an
+ * interrupted transfer can be resumed without sending them again. An instance
+ * is identified by its SOP Instance UID, and the size and the last modified
+ * time of its file, so a file modified since it was sent is sent again.
+ *
+ * Each record is a line: the SOP Instance UID, the file size, the file last
+ * modified time and the file path, separated by tabs. An incomplete last line
+ * (e.g. the process was killed while writing it) is ignored. A ledger should
+ * only be used with the same destination (and the same modifications).
+ */
+public class SendLedger implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(SendLedger.class);
+
+    private final Path _file;
+    private final Set<String> _sent = new HashSet<String>();
+    private Writer _writer;
+
+    private SendLedger(Path file) {
+        _file = file;
+    }
+
+    /**
+     * Opens (or creates) the ledger.
+     *
+     * @param file The ledger file.
+     * @return the ledger.
+     * @throws IOException
+     */
+    public static SendLedger open(Path file) throws IOException {
+        SendLedger ledger = new SendLedger(file);
+        ledger.read();
+        ledger._writer = LineFiles.newAppendWriter(file);
+        return ledger;
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(_file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    logger.warn("ignored invalid ledger record: '" + line + "'");
+                    continue;
+                }
+                _sent.add(fields[0] + "\t" + fields[1] + "\t" + fields[2]);
+            }
+        } catch (NoSuchFileException e) {
+            // new ledger
+        }
+        logger.info("ledger '" + _file + "': " + _sent.size() + " instances sent.");
+    }
+
+    private static String key(DicomFileInfo dicomFile) {
+        return dicomFile.mediaStorageSOPInstanceUID + "\t" + dicomFile.size + "\t" + dicomFile.lastModified;
+    }
+
+    public synchronized int size() {
+        return _sent.size();
+    }
+
+    /**
+     * @return true if the instance has been acknowledged, and its file has not
+     *         changed since.
+     */
+    public synchronized boolean contains(DicomFileInfo dicomFile) {
+        return _sent.contains(key(dicomFile));
+    }
+
+    /**
+     * Records the instance as acknowledged.
+     *
+     * @param dicomFile The file sent.
+     * @throws IOException
+     */
+    public synchronized void record(DicomFileInfo dicomFile) throws IOException {
+        String key = key(dicomFile);
+        if (_sent.add(key) && _writer != null) {
+            _writer.write(key + "\t" + dicomFile.path.toString().replace('\t', ' ').replace('\n', ' ') + "\n");
+            _writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_writer != null) {
+            _writer.close();
+            _writer = null;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package dcmtools.network.storescu;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Status;
+
+import dcmtools.util.DicomFileInfo;
+import dcmtools.util.DicomFiles;
+
+/**
+ * Tracks the outcome of the files of a send attempt: stored by the remote AE,
+ * refused, or not sent at all (e.g. the association was aborted), so that the
+ * files that may succeed on another attempt can be sent again. The stored files
+ * are recorded in the ledger, if any.
+ */
+public class SendTracker {
+
+    private static final Logger logger = LogManager.getLogger(SendTracker.class);
+
+    private final SendLedger _ledger;
+    private final Map<Path, DicomFileInfo> _files = new ConcurrentHashMap<Path, DicomFileInfo>();
+    private final Map<Path, SendFailure> _failures = new ConcurrentHashMap<Path, SendFailure>();
+
+    /**
+     * Constructor.
+     *
+     * @param ledger The ledger to record the stored files. Can be null.
+     */
+    public SendTracker(SendLedger ledger) {
+        _ledger = ledger;
+    }
+
+    /**
+     * Adds a file to the attempt. It is not stored until its C-STORE-RSP is
+     * received. Only the files not stored are kept.
+     */
+    public void add(DicomFileInfo dicomFile) {
+        _files.put(dicomFile.path, dicomFile);
+    }
+
+    public void addAll(Iterable<DicomFileInfo> dicomFiles) {
+        for (DicomFileInfo dicomFile : dicomFiles) {
+            add(dicomFile);
+        }
+    }
+
+    public void stored(DicomFileInfo dicomFile) {
+        _files.remove(dicomFile.path);
+        _failures.remove(dicomFile.path);
+        if (_ledger != null) {
+            try {
+                _ledger.record(dicomFile);
+            } catch (IOException e) {
+                logger.error("failed to record " + dicomFile.path + " in the ledger: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Records the failure of a file. Only the first failure of a file is kept.
+     *
+     * @param dicomFile The file.
+     * @param status    The status of the C-STORE-RSP, -1 if there was no
+     *                  response.
+     * @param message   The reason.
+     * @param retryable false if another attempt would fail the same way.
+     */
+    public void failed(DicomFileInfo dicomFile, int status, String message, boolean retryable) {
+        if (_files.containsKey(dicomFile.path)) {
+            _failures.putIfAbsent(dicomFile.path, new SendFailure(dicomFile, status, message, retryable));
+        }
+    }
+
+    public void notSent(DicomFileInfo dicomFile, String reason) {
+        failed(dicomFile, -1, "not sent: " + reason, true);
+    }
+
+    /**
+     * Records the files neither stored nor failed so far as not sent.
+     */
+    public void notSent(Iterable<DicomFileInfo> dicomFiles, String reason) {
+        for (DicomFileInfo dicomFile : dicomFiles) {
+            notSent(dicomFile, reason);
+        }
+    }
+
+    /**
+     * Wraps the response handler of a C-STORE request, so that the outcome of
+     * the file is tracked.
+     */
+    public DimseRSPHandler track(final DicomFileInfo dicomFile, final DimseRSPHandler rspHandler) {
+        return new DimseRSPHandler(rspHandler.getMessageID()) {
+            @Override
+            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                super.onDimseRSP(as, cmd, data);
+                rspHandler.onDimseRSP(as, cmd, data);
+                int status = cmd.getInt(Tag.Status, -1);
+                if (isStored(status)) {
+                    stored(dicomFile);
+                } else if (status != Status.Pending) {
+                    failed(dicomFile, status, "C-STORE-RSP status " + String.format("%04XH", status),
+                            isRetryable(status));
+                }
+            }
+
+            @Override
+            public void onClose(Association as) {
+                super.onClose(as);
+                rspHandler.onClose(as);
+                failed(dicomFile, -1, "no response: association closed", true);
+            }
+        };
+    }
+
+    /**
+     * The success and warning (Bxxx) statuses: the instance is stored. The
+     * transferred files, the send window and the ledger all follow this rule.
+     */
+    public static boolean isStored(int status) {
+        return status == Status.Success || (status & 0xF000) == 0xB000;
+    }
+
+    /**
+     * The failures caused by the state of the remote AE: out of resources
+     * (A7xxH), processing failure (0110H) and resource limitation (0213H). The
+     * other failures (e.g. SOP class not supported, data set does not match SOP
+     * class, cannot understand) would be repeated.
+     */
+    public static boolean isRetryable(int status) {
+        return status < 0 || (status & 0xFF00) == Status.OutOfResources || status == Status.ProcessingFailure
+                || status == 0x0213;
+    }
+
+    /**
+     * @return the files not stored, that may be stored by another attempt.
+     */
+    public DicomFiles retryable() {
+        DicomFiles dicomFiles = new DicomFiles();
+        for (SendFailure failure : failures()) {
+            if (failure.retryable) {
+                dicomFiles.add(failure.dicomFile);
+            }
+        }
+        return dicomFiles;
+    }
+
+    /**
+     * @return the files not stored, in the order they are sent.
+     */
+    public List<SendFailure> failures() {
+        DicomFiles notStored = new DicomFiles();
+        notStored.addAll(_files.values());
+        List<SendFailure> failures = new ArrayList<SendFailure>(notStored.size());
+        for (DicomFileInfo dicomFile : notStored) {
+            SendFailure failure = _failures.get(dicomFile.path);
+            failures.add(failure == null ? new SendFailure(dicomFile, -1, "not sent", true) : failure);
+        }
+        return failures;
+    }
+
+}
@@ -0,0 +1,209 @@
+package dcmtools.network.storescu;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSPHandler;
+
+/**
+ * Adaptive limit of the outstanding C-STORE requests on an association, driven
+ * by the C-STORE-RSP latency in the manner of TCP congestion control (additive
+ * increase, multiplicative decrease):
+ * <ul>
+ * <li>it starts at one request, and grows by one per response (i.e. doubles
+ * per round trip) until the first congestion (slow start);</li>
+ * <li>then it grows by one per window of responses;</li>
+ * <li>it is halved, at most once per window of requests, when a response takes
+ * more than {@link #LATENCY_FACTOR} times the fastest recent response, or is a
+ * failure, or the association is closed with requests outstanding.</li>
+ * </ul>
+ * The latency of a request is measured from the end of its data set, so that it
+ * does not depend on the size of the file. The fastest recent response is the
+ * fastest of the current and the previous {@link #MIN_LATENCY_PERIOD}, so that
+ * a change of the route or of the load of the remote AE does not keep the
+ * window small. A congested response is not taken as the fastest one: if all
+ * the responses are congested for two periods, the fastest one is forgotten
+ * and the next response is taken.
+ * It never exceeds the maximum (the negotiated maximum number of operations
+ * invoked, if any).
+ */
+public class SendWindow {
+
+    private static final Logger logger = LogManager.getLogger(SendWindow.class);
+
+    public static final int DEFAULT_MAX_WINDOW = 256;
+
+    public static final double LATENCY_FACTOR = 2.0;
+
+    /**
+     * In milliseconds.
+     */
+    public static final long MIN_LATENCY_PERIOD = 10000L;
+
+    private final int _max;
+    private final ProgressMonitor _progressMonitor;
+    private double _window = 1;
+    private double _threshold;
+    private int _inFlight;
+    private long _minLatency = Long.MAX_VALUE;
+    private long _prevMinLatency = Long.MAX_VALUE;
+    private long _minLatencyStart = System.nanoTime();
+    private long _sent;
+    private long _recoverUntil;
+    private int _reported;
+
+    public SendWindow(int max, ProgressMonitor progressMonitor) {
+        _max = max > 0 ? max : DEFAULT_MAX_WINDOW;
+        _threshold = _max;
+        _progressMonitor = progressMonitor;
+        report();
+    }
+
+    public synchronized int window() {
+        return (int) _window;
+    }
+
+    /**
+     * Waits for room in the window, then wraps the response handler of the
+     * request to send, so that the window is updated with its response.
+     *
+     * @param rspHandler The response handler of the request.
+     * @return the wrapped handler.
+     * @throws InterruptedException
+     */
+    public Handler acquire(DimseRSPHandler rspHandler) throws InterruptedException {
+        long seq;
+        synchronized (this) {
+            while (_inFlight >= (int) _window) {
+                wait();
+            }
+            _inFlight++;
+            seq = ++_sent;
+        }
+        return new Handler(rspHandler, seq);
+    }
+
+    /*
+     * latency is -1 if the response was received before the request was sent
+     * (i.e. while its data set was written).
+     */
+    private synchronized void release(long seq, long latency, boolean ok) {
+        _inFlight--;
+        long minLatency = minLatency();
+        boolean congested = !ok || latency > LATENCY_FACTOR * minLatency;
+        if (!congested && latency >= 0 && latency < _minLatency) {
+            _minLatency = latency;
+        }
+        if (congested) {
+            if (seq > _recoverUntil) {
+                _threshold = Math.max(1, _window / 2);
+                _window = _threshold;
+                _recoverUntil = _sent;
+            }
+        } else if (_window < _threshold) {
+            _window = Math.min(_window + 1, _max);
+        } else {
+            _window = Math.min(_window + 1 / _window, _max);
+        }
+        report();
+        notifyAll();
+    }
+
+    /*
+     * the fastest response of the current and the previous periods.
+     */
+    private long minLatency() {
+        long period = MIN_LATENCY_PERIOD * 1000000L;
+        long elapsed = System.nanoTime() - _minLatencyStart;
+        if (elapsed > period) {
+            _prevMinLatency = elapsed > 2 * period ? Long.MAX_VALUE : _minLatency;
+            _minLatency = Long.MAX_VALUE;
+            _minLatencyStart += elapsed / period * period;
+        }
+        return Math.min(_minLatency, _prevMinLatency);
+    }
+
+    private void report() {
+        int window = (int) _window;
+        if (window != _reported) {
+            if (_progressMonitor != null) {
+                _progressMonitor.incWindow(window - _reported);
+            }
+            _reported = window;
+            if (logger.isDebugEnabled()) {
+                logger.debug("C-STORE window: " + window);
+            }
+        }
+    }
+
+    /**
+     * Removes the window from the progress, when the association is closed.
+     */
+    public synchronized void close() {
+        if (_progressMonitor != null && _reported != 0) {
+            _progressMonitor.incWindow(-_reported);
+        }
+        _reported = 0;
+        notifyAll();
+    }
+
+    public class Handler extends DimseRSPHandler {
+
+        private final DimseRSPHandler _rspHandler;
+        private final long _seq;
+        private volatile long _sentTime;
+        private volatile boolean _sent;
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        Handler(DimseRSPHandler rspHandler, long seq) {
+            super(rspHandler.getMessageID());
+            _rspHandler = rspHandler;
+            _seq = seq;
+        }
+
+        @Override
+        public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+            super.onDimseRSP(as, cmd, data);
+            try {
+                _rspHandler.onDimseRSP(as, cmd, data);
+            } finally {
+                int status = cmd.getInt(Tag.Status, -1);
+                release(SendTracker.isStored(status));
+            }
+        }
+
+        @Override
+        public void onClose(Association as) {
+            super.onClose(as);
+            try {
+                _rspHandler.onClose(as);
+            } finally {
+                release(false);
+            }
+        }
+
+        /**
+         * Starts the latency of the request, once its data set is written.
+         */
+        public void sent() {
+            _sentTime = System.nanoTime();
+            _sent = true;
+        }
+
+        /**
+         * Releases the room taken in the window.
+         *
+         * @param ok false if the request failed.
+         */
+        public void release(boolean ok) {
+            if (_released.compareAndSet(false, true)) {
+                SendWindow.this.release(_seq, _sent ? System.nanoTime() - _sentTime : -1, ok);
+            }
+        }
+    }
+
+}
@@ -1,16 +1,31 @@
 package dcmtools.network.storescu;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,28 +33,34 @@ import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.codec.Compressor;
 import org.dcm4che3.imageio.codec.Decompressor;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.io.SAXReader;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriter;
 import org.dcm4che3.net.DataWriterAdapter;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.IncompatibleConnectionException;
-import org.dcm4che3.net.InputStreamDataWriter;
+import org.dcm4che3.net.PDVOutputStream;
 import org.dcm4che3.net.SSLManagerFactory;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.CommonExtendedNegotiation;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.pdu.UserIdentityRQ;
-import org.dcm4che3.util.StreamUtils;
 import org.dcm4che3.util.TagUtils;
 
+import dcmtools.io.BufferPool;
+import dcmtools.io.ChunkedOutputStream;
+import dcmtools.util.DicomFileIndex;
 import dcmtools.util.DicomFileInfo;
+import dcmtools.util.DicomFileScanner;
 import dcmtools.util.DicomFiles;
 
 public class StoreSCU {
@@ -66,50 +87,65 @@ public class StoreSCU {
 
 	private static final Logger logger = LogManager.getLogger(StoreSCU.class);
 
+	private static final int STREAMING_QUEUE_CAPACITY = 1000;
+
+	private static final long STREAMING_POLL_INTERVAL = 100L;
+
+	private static final int MAX_PRESENTATION_CONTEXTS = 128;
+
+	/*
+	 * number of files prepared ahead of the sender, per transcoding worker.
+	 */
+	private static final int TRANSCODING_LOOK_AHEAD = 2;
+
+	/*
+	 * the files whose data set may be larger are not encoded ahead of the
+	 * sender, but read (and decompressed) while they are sent.
+	 */
+	private static final long MAX_ENCODED_SIZE = 32L * 1024 * 1024;
+
+	/*
+	 * the size assumed for a decompressed data set, before it is read.
+	 */
+	private static final int DECOMPRESSION_RATIO = 3;
+
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	private static final long MAX_RETRY_DELAY = 60000L;
+
 	public static interface DimseRSPHandlerFactory {
-		DimseRSPHandler createDimseRSPHandler(Association as, Path f, ProgressMonitor progressMonitor);
+		DimseRSPHandler createDimseRSPHandler(Association as, DicomFileInfo dicomFile,
+				ProgressMonitor progressMonitor);
 	}
 
 	public static class DefaultDimseRSPHandlerFactory implements DimseRSPHandlerFactory {
 
 		@Override
-		public DimseRSPHandler createDimseRSPHandler(final Association as, final Path f,
+		public DimseRSPHandler createDimseRSPHandler(final Association as, final DicomFileInfo dicomFile,
 				final ProgressMonitor progressMonitor) {
 			return new DimseRSPHandler(as.nextMessageID()) {
 				@Override
 				public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
 					super.onDimseRSP(as, cmd, data);
 					int status = cmd.getInt(Tag.Status, -1);
-					long fileSize = 0;
-					try {
-						fileSize = Files.size(f);
-					} catch (IOException e) {
-						logger.error("Failed to get file size: " + f, e);
-						return;
-					}
-					switch (status) {
-					case Status.Success:
+					if (SendTracker.isStored(status)) {
 						if (progressMonitor != null) {
-							progressMonitor.incTransferredBytes(fileSize);
+							progressMonitor.incTransferredBytes(dicomFile.size);
 							progressMonitor.incTransferredFiles();
 						}
-						logger.info(String.format("Received C-STORE-RSP with Status %sH for %s",
-								TagUtils.shortToHexString(status), f.toString()));
-						break;
-					case Status.CoercionOfDataElements:
-					case Status.ElementsDiscarded:
-					case Status.DataSetDoesNotMatchSOPClassWarning:
-						if (progressMonitor != null) {
-							progressMonitor.incTransferredBytes(fileSize);
-							progressMonitor.incTransferredFiles();
+						if (status == Status.Success) {
+							if (logger.isInfoEnabled()) {
+								logger.info("Received C-STORE-RSP with Status " + TagUtils.shortToHexString(status)
+										+ "H for " + dicomFile.path);
+							}
+						} else if (logger.isWarnEnabled()) {
+							logger.warn("Received C-STORE-RSP with Status " + TagUtils.shortToHexString(status)
+									+ "H for " + dicomFile.path);
+							logger.warn(cmd.toString());
 						}
-						logger.warn(String.format("Received C-STORE-RSP with Status %sH for %s",
-								TagUtils.shortToHexString(status), f.toString()));
-						logger.warn(cmd.toString());
-						break;
-					default:
-						logger.error(String.format("Received C-STORE-RSP with Status %sH for %s",
-								TagUtils.shortToHexString(status), f.toString()));
+					} else if (logger.isErrorEnabled()) {
+						logger.error("Received C-STORE-RSP with Status " + TagUtils.shortToHexString(status)
+								+ "H for " + dicomFile.path);
 						logger.error(cmd.toString());
 					}
 				}
@@ -124,8 +160,13 @@ public class StoreSCU {
 	private final ApplicationEntity _ae;
 	private final Connection _lc;
 	private final Connection _rc;
-	private final AAssociateRQ _rq;
-	private Association _as;
+	private final BufferPool _encodeBuffers = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	/*
+	 * bounds (in KiB) the data sets encoded ahead of all the senders.
+	 */
+	private final Semaphore _encodeBudget = new Semaphore(
+			kib(Math.max(MAX_ENCODED_SIZE, Runtime.getRuntime().maxMemory() / 4)), true);
 
 	public StoreSCU(Options options) throws Exception {
 		this(options, new DefaultDimseRSPHandlerFactory());
@@ -204,25 +245,67 @@ public class StoreSCU {
 		if (_op.httpProxy() != null) {
 			_rc.setHttpProxy(_op.httpProxy().toString());
 		}
+	}
 
-		_rq = new AAssociateRQ();
-		_rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
-		_rq.setCalledAET(_op.remoteApplicationEntity().title);
+	private AAssociateRQ createAssociateRQ(Map<String, String> tss) {
+		AAssociateRQ rq = new AAssociateRQ();
+		rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
+		rq.setCalledAET(_op.remoteApplicationEntity().title);
 		if (_op.username() != null) {
-			_rq.setUserIdentityRQ(
+			rq.setUserIdentityRQ(
 					_op.userPassword() != null ? new UserIdentityRQ(_op.username(), _op.userPassword().toCharArray())
 							: new UserIdentityRQ(_op.username(), _op.userRSP()));
 		}
+		if (tss != null) {
+			for (String cuid : tss.keySet()) {
+				addPresentationContexts(rq, cuid, tss.get(cuid));
+			}
+		}
+		return rq;
+	}
+
+	private void addPresentationContexts(AAssociateRQ rq, String cuid, String ts) {
+		String compress = _op.compress();
+		if (compress != null && isUncompressed(ts) && !rq.containsPresentationContextFor(cuid, compress)) {
+			rq.addPresentationContext(
+					new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1, cuid, compress));
+		}
+		if (!rq.containsPresentationContextFor(cuid, ts)) {
+			if (!rq.containsPresentationContextFor(cuid)) {
+				Map<String, CommonExtendedNegotiation> relatedSOPClasses = _op.relatedSOPClasses();
+				if (relatedSOPClasses != null && relatedSOPClasses.containsKey(cuid)) {
+					rq.addCommonExtendedNegotiation(relatedSOPClasses.get(cuid));
+				}
+				if (!ts.equals(UID.ExplicitVRLittleEndian)) {
+					rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1,
+							cuid, UID.ExplicitVRLittleEndian));
+				}
+				if (!ts.equals(UID.ImplicitVRLittleEndian)) {
+					rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1,
+							cuid, UID.ImplicitVRLittleEndian));
+				}
+			}
+			rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1, cuid, ts));
+		}
 	}
 
 	public Progress send(Path... paths) throws Exception {
 		ProgressMonitor progressMonitor = new DefaultProgressMonitor();
-		send(DicomFiles.scan(paths), progressMonitor);
+		send(progressMonitor, paths);
 		return progressMonitor.progress();
 	}
 
 	public void send(ProgressMonitor progressMonitor, Path... paths) throws Exception {
-		send(DicomFiles.scan(paths), progressMonitor);
+		DicomFileIndex index = _op.scanIndex() == null ? null : DicomFileIndex.load(_op.scanIndex());
+		if (_op.streaming()) {
+			stream(progressMonitor, index, paths);
+		} else {
+			DicomFiles dicomFiles = DicomFiles.scan(true, _op.scanThreads(), index, paths);
+			if (index != null) {
+				index.save();
+			}
+			send(dicomFiles, progressMonitor);
+		}
 	}
 
 	public Progress send(DicomFiles dicomFiles) throws Exception {
@@ -235,125 +318,810 @@ public class StoreSCU {
 		if (dicomFiles == null) {
 			return;
 		}
-		Map<String, String> tss = dicomFiles.transferSyntax();
-		for (String cuid : tss.keySet()) {
-			String ts = tss.get(cuid);
-			if (!_rq.containsPresentationContextFor(cuid, ts)) {
-				if (!_rq.containsPresentationContextFor(cuid)) {
-					Map<String, CommonExtendedNegotiation> relatedSOPClasses = _op.relatedSOPClasses();
-					if (relatedSOPClasses != null && relatedSOPClasses.containsKey(cuid)) {
-						_rq.addCommonExtendedNegotiation(relatedSOPClasses.get(cuid));
-					}
-					if (!ts.equals(UID.ExplicitVRLittleEndian)) {
-						_rq.addPresentationContext(new PresentationContext(
-								_rq.getNumberOfPresentationContexts() * 2 + 1, cuid, UID.ExplicitVRLittleEndian));
-					}
-					if (!ts.equals(UID.ImplicitVRLittleEndian)) {
-						_rq.addPresentationContext(new PresentationContext(
-								_rq.getNumberOfPresentationContexts() * 2 + 1, cuid, UID.ImplicitVRLittleEndian));
+		ExecutorService executor = Executors.newCachedThreadPool();
+		ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+		Transfer transfer = new Transfer();
+		Device device = _lc.getDevice();
+		device.setExecutor(executor);
+		device.setScheduledExecutor(scheduledExecutor);
+		try {
+			List<SendFailure> failures = new ArrayList<SendFailure>();
+			if (dicomFiles.isEmpty()) {
+				echo();
+			} else {
+				dicomFiles = transfer.remaining(dicomFiles);
+				if (progressMonitor != null) {
+					progressMonitor.begin(dicomFiles.size());
+				}
+				if (!dicomFiles.isEmpty()) {
+					SendTracker tracker = new SendTracker(transfer.ledger);
+					sendAll(dicomFiles, progressMonitor, transfer, tracker);
+					failures = retry(tracker, progressMonitor, transfer);
+				}
+				if (progressMonitor != null) {
+					progressMonitor.end();
+				}
+			}
+			report(failures);
+		} finally {
+			transfer.close();
+			executor.shutdown();
+			scheduledExecutor.shutdown();
+		}
+	}
+
+	private void sendAll(DicomFiles dicomFiles, ProgressMonitor progressMonitor, Transfer transfer,
+			SendTracker tracker) throws Exception {
+		List<DicomFiles> partitions = dicomFiles.partition(_op.associations());
+		if (partitions.size() == 1) {
+			sendDicomFiles(partitions.get(0), progressMonitor, transfer, tracker);
+		} else {
+			sendDicomFiles(partitions, progressMonitor, transfer, tracker);
+		}
+	}
+
+	/*
+	 * sends again the files not stored for a reason that may not last (e.g. the
+	 * association failed), up to the retry limit, doubling the delay between
+	 * the attempts. Returns the files not stored in the end.
+	 */
+	private List<SendFailure> retry(SendTracker tracker, ProgressMonitor progressMonitor, Transfer transfer)
+			throws Exception {
+		List<SendFailure> failures = new ArrayList<SendFailure>();
+		long delay = _op.retryDelay();
+		for (int attempt = 1; attempt <= _op.retries(); attempt++) {
+			DicomFiles dicomFiles = tracker.retryable();
+			if (dicomFiles.isEmpty()) {
+				break;
+			}
+			for (SendFailure failure : tracker.failures()) {
+				if (!failure.retryable) {
+					failures.add(failure);
+				}
+			}
+			logger.warn("retrying " + dicomFiles.size() + " files in " + delay + " ms (attempt " + attempt + " of "
+					+ _op.retries() + ")");
+			Thread.sleep(delay);
+			delay = Math.min(delay * 2, Math.max(MAX_RETRY_DELAY, _op.retryDelay()));
+			tracker = new SendTracker(transfer.ledger);
+			sendAll(dicomFiles, progressMonitor, transfer, tracker);
+		}
+		failures.addAll(tracker.failures());
+		return failures;
+	}
+
+	/*
+	 * logs the files not stored, and saves them to the failure report, if any.
+	 */
+	private void report(List<SendFailure> failures) throws IOException {
+		for (SendFailure failure : failures) {
+			logger.error("failed to send " + failure.dicomFile.path + ": " + failure.message);
+		}
+		if (_op.failureReport() != null) {
+			try (BufferedWriter w = Files.newBufferedWriter(_op.failureReport(), StandardCharsets.UTF_8)) {
+				for (SendFailure failure : failures) {
+					w.write(failure.toString());
+					w.newLine();
+				}
+			}
+		}
+	}
+
+	private static String reason(Exception e) {
+		return e.getMessage() == null ? e.toString() : e.getMessage();
+	}
+
+	/*
+	 * the resources of a send operation, shared by its associations.
+	 */
+	private class Transfer {
+
+		final ExecutorService transcoder;
+		final SendLedger ledger;
+
+		Transfer() throws IOException {
+			this.ledger = _op.ledger() == null ? null : SendLedger.open(_op.ledger());
+			this.transcoder = _op.transcoders() > 0 ? Executors.newFixedThreadPool(_op.transcoders()) : null;
+		}
+
+		/*
+		 * true if the file has been acknowledged by a previous run.
+		 */
+		boolean isSent(DicomFileInfo dicomFile) {
+			return _op.resume() && this.ledger != null && this.ledger.contains(dicomFile);
+		}
+
+		DicomFiles remaining(DicomFiles dicomFiles) {
+			if (!_op.resume() || this.ledger == null) {
+				return dicomFiles;
+			}
+			DicomFiles remaining = new DicomFiles();
+			for (DicomFileInfo dicomFile : dicomFiles) {
+				if (!isSent(dicomFile)) {
+					remaining.add(dicomFile);
+				}
+			}
+			logger.info("resuming: " + (dicomFiles.size() - remaining.size()) + " of " + dicomFiles.size()
+					+ " files already sent.");
+			return remaining;
+		}
+
+		void close() throws IOException {
+			if (this.transcoder != null) {
+				this.transcoder.shutdownNow();
+			}
+			if (this.ledger != null) {
+				this.ledger.close();
+			}
+		}
+	}
+
+	private void echo() throws Exception {
+		Association as = open(createAssociateRQ(null));
+		try {
+			as.cecho().next();
+		} finally {
+			close(as);
+		}
+	}
+
+	/*
+	 * sends each partition over its own association concurrently.
+	 */
+	private void sendDicomFiles(List<DicomFiles> partitions, final ProgressMonitor progressMonitor,
+			final Transfer transfer, final SendTracker tracker) throws Exception {
+		List<Callable<Void>> senders = new ArrayList<Callable<Void>>(partitions.size());
+		for (final DicomFiles partition : partitions) {
+			senders.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					sendDicomFiles(partition, progressMonitor, transfer, tracker);
+					return null;
+				}
+			});
+		}
+		runConcurrently(senders);
+	}
+
+	private static void runConcurrently(List<Callable<Void>> tasks) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+			for (Callable<Void> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			Exception error = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					logger.error(cause.getMessage(), cause);
+					if (error == null) {
+						error = cause instanceof Exception ? (Exception) cause : ee;
 					}
 				}
-				_rq.addPresentationContext(
-						new PresentationContext(_rq.getNumberOfPresentationContexts() * 2 + 1, cuid, ts));
 			}
+			if (error != null) {
+				throw error;
+			}
+		} finally {
+			executor.shutdown();
 		}
-		ExecutorService executor = Executors.newSingleThreadExecutor();
+	}
+
+	/*
+	 * scans the paths on a producer thread into a bounded queue, while the
+	 * senders drain the queue. An association is (re)negotiated whenever a file
+	 * needs a presentation context that has not been proposed yet.
+	 */
+	private void stream(final ProgressMonitor progressMonitor, final DicomFileIndex index, final Path... paths)
+			throws Exception {
+		final BlockingQueue<DicomFileInfo> queue = new ArrayBlockingQueue<DicomFileInfo>(STREAMING_QUEUE_CAPACITY);
+		final AtomicInteger nbSent = new AtomicInteger();
+		ExecutorService executor = Executors.newCachedThreadPool();
 		ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService scanExecutor = Executors.newSingleThreadExecutor();
+		final Transfer transfer = new Transfer();
+		final AtomicInteger nbSkipped = new AtomicInteger();
+		final SendTracker tracker = new SendTracker(transfer.ledger);
+		final AtomicInteger live = new AtomicInteger(_op.associations());
 		Device device = _lc.getDevice();
 		device.setExecutor(executor);
 		device.setScheduledExecutor(scheduledExecutor);
 		try {
-			open();
-			try {
-				if (dicomFiles.isEmpty()) {
-					_as.cecho().next();
-				} else {
-					if (progressMonitor != null) {
-						progressMonitor.begin(dicomFiles.size());
+			if (progressMonitor != null) {
+				progressMonitor.begin(0);
+			}
+			final Future<Void> scan = scanExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					DicomFileScanner scanner = new DicomFileScanner(_op.scanThreads(), index);
+					for (Path path : paths) {
+						scanner.scan(path, true, new DicomFileScanner.Handler() {
+							@Override
+							public void handle(DicomFileInfo dfi) throws InterruptedException {
+								if (transfer.isSent(dfi)) {
+									nbSkipped.incrementAndGet();
+									return;
+								}
+								queue.put(dfi);
+								if (progressMonitor != null) {
+									progressMonitor.incTotalFiles();
+								}
+							}
+						});
 					}
-					sendDicomFiles(dicomFiles, progressMonitor);
-					if (progressMonitor != null) {
-						progressMonitor.end();
+					if (index != null) {
+						index.save();
 					}
+					return null;
+				}
+			});
+			try {
+				List<Callable<Void>> senders = new ArrayList<Callable<Void>>(_op.associations());
+				for (int i = 0; i < _op.associations(); i++) {
+					senders.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							nbSent.addAndGet(sendDicomFiles(queue, scan, progressMonitor, transfer, tracker, live));
+							return null;
+						}
+					});
+				}
+				runConcurrently(senders);
+				if (!scan.isDone()) {
+					// the senders left before the end of the scan (e.g. their
+					// associations were aborted): stop the scan rather than let it
+					// wait for room in the queue.
+					scan.cancel(true);
+					throw new IOException("association closed before all the files were scanned and sent.");
+				}
+				scan.get();
+				if (!queue.isEmpty()) {
+					throw new IOException(queue.size() + " files not sent: association closed.");
 				}
+			} catch (ExecutionException ee) {
+				throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
 			} finally {
-				close();
+				scan.cancel(true);
 			}
+			if (nbSkipped.get() > 0) {
+				logger.info("resumed: " + nbSkipped.get() + " files already sent.");
+			}
+			if (nbSent.get() == 0 && nbSkipped.get() == 0) {
+				echo();
+			}
+			List<SendFailure> failures = retry(tracker, progressMonitor, transfer);
+			if (progressMonitor != null) {
+				progressMonitor.end();
+			}
+			report(failures);
 		} finally {
+			scanExecutor.shutdownNow();
+			transfer.close();
 			executor.shutdown();
 			scheduledExecutor.shutdown();
 		}
 	}
 
-	private void sendDicomFiles(DicomFiles dicomFiles, ProgressMonitor progressMonitor) throws Exception {
-		for (DicomFileInfo dicomFile : dicomFiles) {
-			if (!_as.isReadyForDataTransfer()) {
-				break;
+	/*
+	 * once its association fails, a sender leaves the queue to the others. The
+	 * last one drains it, so that the scan completes, and the files are sent
+	 * again by the retries.
+	 */
+	private int sendDicomFiles(BlockingQueue<DicomFileInfo> queue, Future<?> scan, ProgressMonitor progressMonitor,
+			Transfer transfer, SendTracker tracker, AtomicInteger live) throws Exception {
+		int nbSent = 0;
+		AAssociateRQ rq = null;
+		Sender sender = null;
+		String failure = null;
+		try {
+			while (true) {
+				DicomFileInfo dicomFile = queue.poll(STREAMING_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (dicomFile == null) {
+					if (scan.isDone() && queue.isEmpty()) {
+						break;
+					}
+					continue;
+				}
+				tracker.add(dicomFile);
+				if (failure != null) {
+					tracker.notSent(dicomFile, failure);
+					continue;
+				}
+				try {
+					String cuid = dicomFile.mediaStorageSOPClassUID;
+					String ts = dicomFile.transferSyntaxUID;
+					if (sender == null || !rq.containsPresentationContextFor(cuid, ts)) {
+						if (sender != null) {
+							sender.finish();
+							sender.close();
+							sender = null;
+						}
+						if (rq == null || rq.getNumberOfPresentationContexts() + 3 > MAX_PRESENTATION_CONTEXTS) {
+							rq = createAssociateRQ(null);
+						}
+						addPresentationContexts(rq, cuid, ts);
+						logger.info("negotiating association with " + rq.getNumberOfPresentationContexts()
+								+ " presentation contexts");
+						sender = new Sender(open(rq), progressMonitor, transfer, tracker);
+					}
+					if (sender.as.isReadyForDataTransfer()) {
+						sender.send(dicomFile);
+						nbSent++;
+						continue;
+					}
+					failure = "association aborted";
+				} catch (InterruptedException ie) {
+					throw ie;
+				} catch (Exception e) {
+					logger.error("failed to send " + dicomFile.path + ": " + e.getMessage(), e);
+					failure = reason(e);
+				}
+				if (sender != null) {
+					closeQuietly(sender);
+					sender = null;
+				}
+				tracker.notSent(dicomFile, failure);
+				if (live.decrementAndGet() > 0) {
+					break;
+				}
+			}
+			if (sender != null) {
+				sender.finish();
+			}
+		} finally {
+			if (sender != null) {
+				closeQuietly(sender);
 			}
-			sendDicomFile(dicomFile, progressMonitor);
 		}
+		return nbSent;
+	}
+
+	private void sendDicomFiles(DicomFiles dicomFiles, ProgressMonitor progressMonitor, Transfer transfer,
+			SendTracker tracker) throws InterruptedException {
+		tracker.addAll(dicomFiles);
+		String failure = null;
+		Sender sender = null;
 		try {
-			_as.waitForOutstandingRSP();
+			sender = new Sender(open(createAssociateRQ(dicomFiles.transferSyntax())), progressMonitor, transfer,
+					tracker);
+			for (DicomFileInfo dicomFile : dicomFiles) {
+				if (!sender.as.isReadyForDataTransfer()) {
+					failure = "association aborted";
+					break;
+				}
+				sender.send(dicomFile);
+			}
+			sender.finish();
 		} catch (InterruptedException ie) {
-			logger.warn(ie.getMessage(), ie);
+			throw ie;
+		} catch (Exception e) {
+			logger.error("failed to send: " + e.getMessage(), e);
+			failure = reason(e);
+		} finally {
+			if (sender != null) {
+				closeQuietly(sender);
+			}
+		}
+		if (failure != null) {
+			tracker.notSent(dicomFiles, failure);
 		}
 	}
 
-	private void sendDicomFile(DicomFileInfo dicomFile, ProgressMonitor progressMonitor) throws Exception {
+	private static void closeQuietly(Sender sender) throws InterruptedException {
+		try {
+			sender.close();
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * sends the files over an association. With a transcoder, the files are
+	 * read, decompressed and encoded by its workers ahead of the sender, up to
+	 * the look-ahead limit and the encoding budget, and sent in order as they
+	 * are ready.
+	 */
+	private class Sender {
+
+		final Association as;
+		private final SendWindow _window;
+		private final ProgressMonitor _progressMonitor;
+		private final ExecutorService _transcoder;
+		private final SendTracker _tracker;
+		private final int _lookAhead;
+		private final Deque<Pending> _pending = new ArrayDeque<Pending>();
+
+		Sender(Association as, ProgressMonitor progressMonitor, Transfer transfer, SendTracker tracker) {
+			this.as = as;
+			_window = createSendWindow(as, progressMonitor);
+			_progressMonitor = progressMonitor;
+			_transcoder = transfer.transcoder;
+			_tracker = tracker;
+			_lookAhead = TRANSCODING_LOOK_AHEAD * Math.max(1, _op.transcoders());
+		}
+
+		void send(final DicomFileInfo dicomFile) throws Exception {
+			if (_transcoder == null) {
+				sendDirect(dicomFile);
+				return;
+			}
+			final String ts = selectTransferSyntax(as, dicomFile);
+			if (isUnmodified(dicomFile, ts)) {
+				// nothing to transcode: no need to wait for a worker.
+				FutureTask<Outgoing> f = new FutureTask<Outgoing>(task(dicomFile, 0));
+				f.run();
+				_pending.add(new Pending(f, 0));
+			} else {
+				final long size = estimateEncodedSize(dicomFile, ts);
+				if (size > MAX_ENCODED_SIZE) {
+					// sent after the files pending, to keep the order.
+					flush();
+					sendDirect(dicomFile);
+					return;
+				}
+				int permits = kib(size);
+				reserve(permits);
+				try {
+					_pending.add(new Pending(_transcoder.submit(task(dicomFile, size)), permits));
+				} catch (RuntimeException e) {
+					_encodeBudget.release(permits);
+					throw e;
+				}
+			}
+			while (_pending.size() >= _lookAhead && as.isReadyForDataTransfer()) {
+				sendNext();
+			}
+		}
+
+		private void sendDirect(DicomFileInfo dicomFile) throws Exception {
+			Outgoing o = tryPrepare(dicomFile, 0);
+			if (o != null) {
+				send(o);
+			}
+		}
+
+		private Callable<Outgoing> task(final DicomFileInfo dicomFile, final long maxEncodedSize) {
+			return new Callable<Outgoing>() {
+				@Override
+				public Outgoing call() throws Exception {
+					return tryPrepare(dicomFile, maxEncodedSize);
+				}
+			};
+		}
 
 		/*
-		 * transfer syntax UID
+		 * takes room in the encoding budget. While there is none, the files
+		 * pending here are sent to give theirs back: only when none is left does
+		 * it wait for the other senders to give theirs back.
 		 */
-		String ts = dicomFile.transferSyntaxUID;
-		Set<String> tss = _as.getTransferSyntaxesFor(dicomFile.mediaStorageSOPClassUID);
-		if (tss.contains(dicomFile.transferSyntaxUID)) {
-			ts = dicomFile.transferSyntaxUID;
-		} else if (tss.contains(UID.ExplicitVRLittleEndian)) {
-			ts = UID.ExplicitVRLittleEndian;
-		} else {
-			ts = UID.ImplicitVRLittleEndian;
+		private void reserve(int permits) throws Exception {
+			while (!_encodeBudget.tryAcquire(permits)) {
+				if (_pending.isEmpty()) {
+					_encodeBudget.acquire(permits);
+					return;
+				}
+				sendNext();
+			}
 		}
 
-		if (dicomFile.path.toString().endsWith(".xml")) {
-			// parsed dicom file
-			try (InputStream in = new BufferedInputStream(Files.newInputStream(dicomFile.path))) {
-				Attributes data = SAXReader.parse(in);
-				String mediaStorageSOPInstanceUID = dicomFile.mediaStorageSOPInstanceUID;
-				if (updateAttributes(data)) {
-					mediaStorageSOPInstanceUID = data.getString(Tag.SOPInstanceUID);
+		void flush() throws Exception {
+			while (!_pending.isEmpty() && as.isReadyForDataTransfer()) {
+				sendNext();
+			}
+		}
+
+		/*
+		 * sends the pending files and waits for the outstanding responses.
+		 */
+		void finish() throws Exception {
+			flush();
+			try {
+				as.waitForOutstandingRSP();
+			} catch (InterruptedException ie) {
+				logger.warn(ie.getMessage(), ie);
+			}
+		}
+
+		/*
+		 * a file that cannot be read (or transcoded) fails on its own, without
+		 * failing the other files.
+		 */
+		private Outgoing tryPrepare(DicomFileInfo dicomFile, long maxEncodedSize) throws InterruptedException {
+			try {
+				return prepare(as, dicomFile, maxEncodedSize);
+			} catch (InterruptedException ie) {
+				throw ie;
+			} catch (Exception e) {
+				logger.error("failed to read " + dicomFile.path + ": " + e.getMessage(), e);
+				_tracker.failed(dicomFile, -1, "failed to read: " + reason(e), false);
+				return null;
+			}
+		}
+
+		private void sendNext() throws Exception {
+			Pending p = _pending.poll();
+			try {
+				Outgoing o;
+				try {
+					o = p.future.get();
+				} catch (ExecutionException ee) {
+					throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
 				}
-				if (!ts.equals(dicomFile.transferSyntaxUID)) {
-					Decompressor.decompress(data, dicomFile.transferSyntaxUID);
+				if (o != null) {
+					send(o);
 				}
-				_as.cstore(dicomFile.mediaStorageSOPClassUID, mediaStorageSOPInstanceUID, _op.priority(),
-						new DataWriterAdapter(data), ts,
-						_rspHandlerFactory.createDimseRSPHandler(_as, dicomFile.path, progressMonitor));
+			} finally {
+				_encodeBudget.release(p.permits);
+			}
+		}
+
+		private void send(Outgoing o) throws Exception {
+			try {
+				cstore(as, _window, _tracker, o.dicomFile.mediaStorageSOPClassUID, o.iuid, o.data, o.ts,
+						o.dicomFile, _progressMonitor);
+			} finally {
+				o.release();
+			}
+		}
+
+		void close() throws IOException, InterruptedException {
+			Pending p;
+			while ((p = _pending.poll()) != null) {
+				p.future.cancel(true);
+				try {
+					Outgoing o = p.future.get();
+					if (o != null) {
+						o.release();
+					}
+				} catch (Exception e) {
+					// cancelled or failed: nothing to release
+				}
+				_encodeBudget.release(p.permits);
+			}
+			StoreSCU.this.close(as, _window);
+		}
+	}
+
+	/*
+	 * a file being prepared by a transcoding worker, and the room it takes in
+	 * the encoding budget until it is sent.
+	 */
+	private static class Pending {
+		final Future<Outgoing> future;
+		final int permits;
+
+		Pending(Future<Outgoing> future, int permits) {
+			this.future = future;
+			this.permits = permits;
+		}
+	}
+
+	private static int kib(long size) {
+		return (int) Math.min(Integer.MAX_VALUE, (size + 1023) / 1024);
+	}
+
+	/*
+	 * an upper bound of the data set encoded for the transfer syntax, before the
+	 * file is read: a compressed file may be decompressed.
+	 */
+	private static long estimateEncodedSize(DicomFileInfo dicomFile, String ts) {
+		if (isUncompressed(ts) && !isUncompressed(dicomFile.transferSyntaxUID)) {
+			return dicomFile.size * DECOMPRESSION_RATIO;
+		}
+		return dicomFile.size;
+	}
+
+	/*
+	 * the size of the pixel data once decompressed.
+	 */
+	private static long decompressedSize(Attributes data) {
+		long bits = (long) data.getInt(Tag.Rows, 0) * data.getInt(Tag.Columns, 0) * data.getInt(Tag.SamplesPerPixel, 1)
+				* data.getInt(Tag.NumberOfFrames, 1) * data.getInt(Tag.BitsAllocated, 8);
+		return (bits + 7) / 8;
+	}
+
+	/*
+	 * the window is bounded by the maximum number of operations invoked
+	 * negotiated with the remote AE, if any.
+	 */
+	private SendWindow createSendWindow(Association as, ProgressMonitor progressMonitor) {
+		if (!_op.adaptiveWindow()) {
+			return null;
+		}
+		SendWindow window = new SendWindow(as.getMaxOpsInvoked(), progressMonitor);
+		logger.info("adaptive C-STORE window, up to " + (as.getMaxOpsInvoked() > 0 ? as.getMaxOpsInvoked()
+				: SendWindow.DEFAULT_MAX_WINDOW) + " outstanding requests");
+		return window;
+	}
+
+	private void cstore(Association as, SendWindow window, SendTracker tracker, String cuid, String iuid,
+			DataWriter data, String ts, DicomFileInfo dicomFile, ProgressMonitor progressMonitor)
+			throws IOException, InterruptedException {
+		DimseRSPHandler rspHandler = _rspHandlerFactory.createDimseRSPHandler(as, dicomFile, progressMonitor);
+		rspHandler = tracker.track(dicomFile, rspHandler);
+		if (window == null) {
+			as.cstore(cuid, iuid, _op.priority(), data, ts, rspHandler);
+			return;
+		}
+		SendWindow.Handler handler = window.acquire(rspHandler);
+		try {
+			as.cstore(cuid, iuid, _op.priority(), data, ts, handler);
+			handler.sent();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			handler.release(false);
+			throw e;
+		}
+	}
+
+	/*
+	 * a file ready to send. Its data set is either read (and compressed) from
+	 * the file while it is sent, or has been encoded in advance.
+	 */
+	private static class Outgoing {
+		final DicomFileInfo dicomFile;
+		final String iuid;
+		final String ts;
+		final DataWriter data;
+		final ChunkedOutputStream encoded;
+		final Compressor compressor;
+
+		Outgoing(DicomFileInfo dicomFile, String iuid, String ts, DataWriter data, ChunkedOutputStream encoded) {
+			this(dicomFile, iuid, ts, data, encoded, null);
+		}
+
+		Outgoing(DicomFileInfo dicomFile, String iuid, String ts, DataWriter data, ChunkedOutputStream encoded,
+				Compressor compressor) {
+			this.dicomFile = dicomFile;
+			this.iuid = iuid;
+			this.ts = ts;
+			this.data = data;
+			this.encoded = encoded;
+			this.compressor = compressor;
+		}
+
+		void release() {
+			if (this.encoded != null) {
+				this.encoded.release();
 			}
+			if (this.compressor != null) {
+				this.compressor.close();
+			}
+		}
+	}
+
+	private static boolean isUncompressed(String ts) {
+		return UID.ImplicitVRLittleEndian.equals(ts) || UID.ExplicitVRLittleEndian.equals(ts);
+	}
+
+	private String selectTransferSyntax(Association as, DicomFileInfo dicomFile) {
+		String compress = _op.compress();
+		if (compress != null && isUncompressed(dicomFile.transferSyntaxUID)
+				&& as.getTransferSyntaxesFor(dicomFile.mediaStorageSOPClassUID).contains(compress)) {
+			return compress;
+		}
+		return selectUncompressedTransferSyntax(as, dicomFile);
+	}
+
+	private static String selectUncompressedTransferSyntax(Association as, DicomFileInfo dicomFile) {
+		Set<String> tss = as.getTransferSyntaxesFor(dicomFile.mediaStorageSOPClassUID);
+		if (tss.contains(dicomFile.transferSyntaxUID)) {
+			return dicomFile.transferSyntaxUID;
+		} else if (tss.contains(UID.ExplicitVRLittleEndian)) {
+			return UID.ExplicitVRLittleEndian;
 		} else {
-			if (_op.uidSuffix() == null && !_op.hasAttributes() && ts.equals(dicomFile.transferSyntaxUID)) {
-				try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(dicomFile.path))) {
-					StreamUtils.skipFully(in, dicomFile.datasetOffset);
-					_as.cstore(dicomFile.mediaStorageSOPClassUID, dicomFile.mediaStorageSOPInstanceUID, _op.priority(),
-							new InputStreamDataWriter(in), ts,
-							_rspHandlerFactory.createDimseRSPHandler(_as, dicomFile.path, progressMonitor));
+			return UID.ImplicitVRLittleEndian;
+		}
+	}
+
+	private boolean isUnmodified(DicomFileInfo dicomFile, String ts) {
+		return !dicomFile.path.toString().endsWith(".xml") && _op.uidSuffix() == null && !_op.hasAttributes()
+				&& ts.equals(dicomFile.transferSyntaxUID);
+	}
+
+	/*
+	 * if maxEncodedSize is not 0, the data set is read, decompressed (or
+	 * compressed) and encoded into buffers here, instead of while it is sent,
+	 * unless it would be larger once decompressed (or the file is larger, to be
+	 * compressed). Otherwise, it is decompressed (or compressed) while it is
+	 * sent.
+	 */
+	private Outgoing prepare(Association as, DicomFileInfo dicomFile, long maxEncodedSize) throws Exception {
+		String ts = selectTransferSyntax(as, dicomFile);
+		if (isUnmodified(dicomFile, ts)) {
+			// unmodified: send the dataset bytes as is
+			return new Outgoing(dicomFile, dicomFile.mediaStorageSOPInstanceUID, ts,
+					new FileDataWriter(dicomFile.path, dicomFile.datasetOffset), null);
+		}
+		Attributes data = readDataset(dicomFile);
+		String mediaStorageSOPInstanceUID = dicomFile.mediaStorageSOPInstanceUID;
+		if (updateAttributes(data)) {
+			mediaStorageSOPInstanceUID = data.getString(Tag.SOPInstanceUID);
+		}
+		if (ts.equals(_op.compress()) && !ts.equals(dicomFile.transferSyntaxUID)) {
+			// compressed no larger than the file, so it fits if the file does
+			boolean encode = maxEncodedSize > 0 && dicomFile.size <= maxEncodedSize;
+			if (UID.DeflatedExplicitVRLittleEndian.equals(ts)) {
+				// deflated by the output stream
+				if (!encode) {
+					return new Outgoing(dicomFile, mediaStorageSOPInstanceUID, ts, new DataWriterAdapter(data), null);
 				}
-			} else {
-				try (DicomInputStream in = new DicomInputStream(
-						new BufferedInputStream(Files.newInputStream(dicomFile.path)))) {
-					in.setIncludeBulkData(IncludeBulkData.URI);
-					Attributes data = in.readDataset(-1, -1);
-					String mediaStorageSOPInstanceUID = dicomFile.mediaStorageSOPInstanceUID;
-					if (updateAttributes(data))
-						mediaStorageSOPInstanceUID = data.getString(Tag.SOPInstanceUID);
-					if (!ts.equals(dicomFile.transferSyntaxUID)) {
-						Decompressor.decompress(data, dicomFile.transferSyntaxUID);
+				return encode(dicomFile, mediaStorageSOPInstanceUID, ts, data);
+			}
+			Compressor compressor = new Compressor(data, dicomFile.transferSyntaxUID);
+			try {
+				if (compressor.compress(ts)) {
+					// the frames are compressed while they are encoded
+					if (!encode) {
+						// while they are sent: the compressor is closed once the file is sent.
+						Outgoing o = new Outgoing(dicomFile, mediaStorageSOPInstanceUID, ts,
+								new DataWriterAdapter(data), null, compressor);
+						compressor = null;
+						return o;
 					}
-					_as.cstore(dicomFile.mediaStorageSOPClassUID, mediaStorageSOPInstanceUID, _op.priority(),
-							new DataWriterAdapter(data), ts,
-							_rspHandlerFactory.createDimseRSPHandler(_as, dicomFile.path, progressMonitor));
+					return encode(dicomFile, mediaStorageSOPInstanceUID, ts, data);
+				}
+			} catch (IOException | RuntimeException e) {
+				/*
+				 * the uncompressed transfer syntaxes are negotiated as well: the file
+				 * is sent uncompressed, read again as the compressor may have
+				 * replaced its pixel data.
+				 */
+				logger.warn("failed to compress " + dicomFile.path + ", sending it uncompressed: " + e.getMessage());
+				data = readDataset(dicomFile);
+				updateAttributes(data);
+			} finally {
+				if (compressor != null) {
+					compressor.close();
 				}
 			}
+			// no pixel data to compress, or failed to
+			ts = selectUncompressedTransferSyntax(as, dicomFile);
 		}
+		boolean encode = maxEncodedSize > 0;
+		if (!ts.equals(dicomFile.transferSyntaxUID)) {
+			encode = encode && dicomFile.size + decompressedSize(data) <= maxEncodedSize;
+			Decompressor.decompress(data, dicomFile.transferSyntaxUID);
+		}
+		if (!encode) {
+			return new Outgoing(dicomFile, mediaStorageSOPInstanceUID, ts, new DataWriterAdapter(data), null);
+		}
+		return encode(dicomFile, mediaStorageSOPInstanceUID, ts, data);
+	}
+
+	/*
+	 * the bulk data is not read, but referenced by URI.
+	 */
+	private static Attributes readDataset(DicomFileInfo dicomFile) throws Exception {
+		if (dicomFile.path.toString().endsWith(".xml")) {
+			// parsed dicom file
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(dicomFile.path))) {
+				return SAXReader.parse(in);
+			}
+		}
+		try (DicomInputStream in = new DicomInputStream(new BufferedInputStream(Files.newInputStream(dicomFile.path)))) {
+			in.setIncludeBulkData(IncludeBulkData.URI);
+			in.setURI(dicomFile.path.toUri().toString());
+			return in.readDataset(-1, -1);
+		}
+	}
+
+	private Outgoing encode(DicomFileInfo dicomFile, String iuid, String ts, Attributes data) throws IOException {
+		final ChunkedOutputStream encoded = new ChunkedOutputStream(_encodeBuffers);
+		try (DicomOutputStream dos = new DicomOutputStream(encoded, ts)) {
+			dos.writeDataset(null, data);
+		} catch (IOException | RuntimeException e) {
+			encoded.release();
+			throw e;
+		}
+		return new Outgoing(dicomFile, iuid, ts, new DataWriter() {
+			@Override
+			public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+				encoded.writeTo(out);
+			}
+		}, encoded);
 	}
 
 	private boolean updateAttributes(Attributes data) {
@@ -372,21 +1140,26 @@ public class StoreSCU {
 		return true;
 	}
 
-	private void close() throws IOException, InterruptedException {
-		if (_as != null) {
-			if (_as.isReadyForDataTransfer()) {
-				_as.release();
+	private void close(Association as) throws IOException, InterruptedException {
+		if (as.isReadyForDataTransfer()) {
+			as.release();
+		}
+		as.waitForSocketClose();
+	}
+
+	private void close(Association as, SendWindow window) throws IOException, InterruptedException {
+		try {
+			close(as);
+		} finally {
+			if (window != null) {
+				window.close();
 			}
-			_as.waitForSocketClose();
-			_as = null;
 		}
 	}
 
-	private void open()
+	private Association open(AAssociateRQ rq)
 			throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
-		if (_as == null) {
-			_as = _ae.connect(_rc, _rq);
-		}
+		return _ae.connect(_rc, rq);
 	}
 
 }
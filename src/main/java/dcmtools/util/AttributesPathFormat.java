@@ -0,0 +1,104 @@
+package dcmtools.util;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.AttributesFormat;
+
+/**
+ * {@link AttributesFormat} to generate file paths, which also reports the
+ * highest data set tag referenced by the pattern, so that the DICOM file
+ * headers are only read as far as needed to format the path.
+ */
+public class AttributesPathFormat {
+
+    private final String _pattern;
+    private final AttributesFormat _format;
+    private final int _maxTag;
+
+    public AttributesPathFormat(String pattern) {
+        _pattern = pattern;
+        _format = new AttributesFormat(pattern);
+        _maxTag = maxTag(pattern);
+    }
+
+    public String pattern() {
+        return _pattern;
+    }
+
+    public String format(Attributes attrs) {
+        return _format.format(attrs);
+    }
+
+    /**
+     * @return the highest data set tag (as unsigned) referenced by the pattern.
+     *         File meta information tags (group 0002) are ignored, as they are
+     *         not part of the data set.
+     */
+    public int maxTag() {
+        return _maxTag;
+    }
+
+    /**
+     * @return the tag to stop reading the data set at: the tag after
+     *         {@link #maxTag()}, but no further than the pixel data.
+     */
+    public int stopTag() {
+        return Integer.compareUnsigned(_maxTag, Tag.PixelData) >= 0 ? Tag.PixelData : _maxTag + 1;
+    }
+
+    /*
+     * the first field of each {...} is the tag, or the sequence tag of a nested
+     * attribute (tag/tag...), as hex or keyword. Anything else, e.g. {rnd} or
+     * {now,...}, does not reference an attribute.
+     */
+    private static int maxTag(String pattern) {
+        int max = 0;
+        int from = 0;
+        while (true) {
+            int cbs = pattern.indexOf('{', from);
+            if (cbs < 0) {
+                break;
+            }
+            int cbe = pattern.indexOf('}', cbs);
+            if (cbe < 0) {
+                break;
+            }
+            String field = pattern.substring(cbs + 1, cbe);
+            int comma = field.indexOf(',');
+            if (comma >= 0) {
+                field = field.substring(0, comma);
+            }
+            int slash = field.indexOf('/');
+            if (slash >= 0) {
+                field = field.substring(0, slash);
+            }
+            int tag = parseTag(field.trim());
+            if (tag != -1 && (tag >>> 16) != 0x0002 && Integer.compareUnsigned(tag, max) > 0) {
+                max = tag;
+            }
+            from = cbe + 1;
+        }
+        return max;
+    }
+
+    private static int parseTag(String s) {
+        if (s.length() == 8) {
+            try {
+                return Integer.parseUnsignedInt(s, 16);
+            } catch (NumberFormatException e) {
+                // not hex: keyword
+            }
+        }
+        if (s.isEmpty() || !Character.isUpperCase(s.charAt(0))) {
+            return -1;
+        }
+        return ElementDictionary.tagForKeyword(s, null);
+    }
+
+    @Override
+    public String toString() {
+        return _pattern;
+    }
+
+}
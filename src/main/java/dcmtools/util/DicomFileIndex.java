@@ -0,0 +1,272 @@
+package dcmtools.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * On-disk cache of scanned {@link DicomFileInfo}, keyed by absolute path, size
+ * and last modified time. Files that are not DICOM are remembered as well, so
+ * they are not sniffed again either.
+ *
+ * The index is stored in a compact binary format: a table of the distinct
+ * strings (UIDs and parent directories) followed by the entries, which refer to
+ * the strings by their position in the table.
+ */
+public class DicomFileIndex {
+
+    private static final Logger logger = LogManager.getLogger(DicomFileIndex.class);
+
+    private static final int MAGIC = 0x44434958; // "DCIX"
+    private static final int VERSION = 1;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final DicomFileInfo dfi;
+        volatile boolean visited;
+
+        Entry(long size, long lastModified, DicomFileInfo dfi) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.dfi = dfi;
+        }
+    }
+
+    private final Path _file;
+    private final Map<Path, Entry> _entries = new ConcurrentHashMap<Path, Entry>();
+    private final StringPool _strings = new StringPool();
+    private volatile boolean _modified;
+
+    private DicomFileIndex(Path file) {
+        _file = file;
+    }
+
+    public Path file() {
+        return _file;
+    }
+
+    /**
+     * @return the pool shared by the indexed UIDs, so that the files parsed while
+     *         scanning share the same strings.
+     */
+    public StringPool strings() {
+        return _strings;
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    private static Path key(Path f) {
+        return f.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Looks up the file in the index.
+     *
+     * @param f     The file.
+     * @param attrs The file attributes.
+     * @param found Set to true if the index has an up to date entry for the
+     *              file.
+     * @return the file info, or null if the file is not indexed, or is indexed as
+     *         not a DICOM file.
+     */
+    public DicomFileInfo get(Path f, BasicFileAttributes attrs, boolean[] found) {
+        Entry e = _entries.get(key(f));
+        if (e == null || e.size != attrs.size() || e.lastModified != attrs.lastModifiedTime().toMillis()) {
+            found[0] = false;
+            return null;
+        }
+        e.visited = true;
+        found[0] = true;
+        return e.dfi == null ? null : new DicomFileInfo(f, e.dfi);
+    }
+
+    /**
+     * Adds or replaces the entry for the file.
+     *
+     * @param f     The file.
+     * @param attrs The file attributes.
+     * @param dfi   The file info, or null if the file is not a DICOM file.
+     */
+    public void put(Path f, BasicFileAttributes attrs, DicomFileInfo dfi) {
+        Entry e = new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), dfi);
+        e.visited = true;
+        _entries.put(key(f), e);
+        _modified = true;
+    }
+
+    /**
+     * Loads the index file. If the file does not exist or cannot be read, an
+     * empty index is returned.
+     *
+     * @param file The index file.
+     * @return the index.
+     */
+    public static DicomFileIndex load(Path file) {
+        DicomFileIndex index = new DicomFileIndex(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            index.read(in);
+            logger.info("loaded " + index.size() + " entries from scan index: '" + file + "'");
+        } catch (NoSuchFileException e) {
+            logger.info("scan index: '" + file + "' does not exist. It will be created.");
+        } catch (IOException e) {
+            logger.warn("failed to read scan index: '" + file + "'. It will be rebuilt.", e);
+            index._entries.clear();
+        }
+        return index;
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a scan index file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported scan index version: " + version);
+        }
+        int nbStrings = in.readInt();
+        String[] strings = new String[nbStrings];
+        for (int i = 0; i < nbStrings; i++) {
+            strings[i] = in.readUTF();
+        }
+        int nbEntries = in.readInt();
+        for (int i = 0; i < nbEntries; i++) {
+            Path f = _file.getFileSystem().getPath(string(strings, in.readInt()), in.readUTF());
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            DicomFileInfo dfi = null;
+            if (in.readBoolean()) {
+                long datasetOffset = in.readLong();
+                String mediaStorageSOPClassUID = _strings.intern(string(strings, in.readInt()));
+                String mediaStorageSOPInstanceUID = string(strings, in.readInt());
+                String transferSyntaxUID = _strings.intern(string(strings, in.readInt()));
+                String studyInstanceUID = _strings.intern(string(strings, in.readInt()));
+                String seriesInstanceUID = _strings.intern(string(strings, in.readInt()));
+                int seriesNumber = in.readInt();
+                String sopInstanceUID = string(strings, in.readInt());
+                int instanceNumber = in.readInt();
+                dfi = new DicomFileInfo(f, size, lastModified, datasetOffset, mediaStorageSOPClassUID,
+                        mediaStorageSOPInstanceUID, transferSyntaxUID, studyInstanceUID, seriesInstanceUID, seriesNumber, sopInstanceUID,
+                        instanceNumber);
+            }
+            _entries.put(f, new Entry(size, lastModified, dfi));
+        }
+    }
+
+    private static String string(String[] strings, int idx) throws IOException {
+        if (idx < 0) {
+            return null;
+        }
+        if (idx >= strings.length) {
+            throw new IOException("invalid string index: " + idx);
+        }
+        return strings[idx];
+    }
+
+    /**
+     * Saves the index if it has been modified. Entries of files that were not
+     * visited and no longer exist are dropped. The index file is replaced
+     * atomically, so an interrupted save leaves the previous index intact.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        for (Iterator<Map.Entry<Path, Entry>> it = _entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, Entry> e = it.next();
+            if (!e.getValue().visited && !Files.exists(e.getKey())) {
+                it.remove();
+                _modified = true;
+            }
+        }
+        if (!_modified) {
+            return;
+        }
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        List<Map.Entry<Path, Entry>> entries = new ArrayList<Map.Entry<Path, Entry>>(_entries.entrySet());
+        for (Map.Entry<Path, Entry> e : entries) {
+            index(strings, String.valueOf(e.getKey().getParent()));
+            DicomFileInfo dfi = e.getValue().dfi;
+            if (dfi != null) {
+                index(strings, dfi.mediaStorageSOPClassUID);
+                index(strings, dfi.mediaStorageSOPInstanceUID);
+                index(strings, dfi.transferSyntaxUID);
+                index(strings, dfi.studyInstanceUID);
+                index(strings, dfi.seriesInstanceUID);
+                index(strings, dfi.sopInstanceUID);
+            }
+        }
+        Path dir = _file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        Path tmp = Files.createTempFile(dir, _file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(strings.size());
+                for (String s : strings.keySet()) {
+                    out.writeUTF(s);
+                }
+                out.writeInt(entries.size());
+                for (Map.Entry<Path, Entry> e : entries) {
+                    Path f = e.getKey();
+                    Entry entry = e.getValue();
+                    out.writeInt(strings.get(String.valueOf(f.getParent())));
+                    out.writeUTF(f.getFileName().toString());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    DicomFileInfo dfi = entry.dfi;
+                    out.writeBoolean(dfi != null);
+                    if (dfi != null) {
+                        out.writeLong(dfi.datasetOffset);
+                        out.writeInt(index(strings, dfi.mediaStorageSOPClassUID));
+                        out.writeInt(index(strings, dfi.mediaStorageSOPInstanceUID));
+                        out.writeInt(index(strings, dfi.transferSyntaxUID));
+                        out.writeInt(index(strings, dfi.studyInstanceUID));
+                        out.writeInt(index(strings, dfi.seriesInstanceUID));
+                        out.writeInt(dfi.seriesNumber);
+                        out.writeInt(index(strings, dfi.sopInstanceUID));
+                        out.writeInt(dfi.instanceNumber);
+                    }
+                }
+            }
+            Files.move(tmp, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        _modified = false;
+        logger.info("saved " + entries.size() + " entries to scan index: '" + _file + "'");
+    }
+
+    private static int index(Map<String, Integer> strings, String s) {
+        if (s == null) {
+            return -1;
+        }
+        Integer idx = strings.get(s);
+        if (idx == null) {
+            idx = strings.size();
+            strings.put(s, idx);
+        }
+        return idx;
+    }
+
+}
@@ -7,6 +7,11 @@ import org.dcm4che3.data.Tag;
 
 public class DicomFileInfo implements Comparable<DicomFileInfo> {
     public final Path path;
+    public final long size;
+    /**
+     * The last modified time of the file, in milliseconds since the epoch.
+     */
+    public final long lastModified;
     public final long datasetOffset;
     public final String mediaStorageSOPClassUID;
     public final String mediaStorageSOPInstanceUID;
@@ -17,19 +22,63 @@ public class DicomFileInfo implements Comparable<DicomFileInfo> {
     public final String sopInstanceUID;
     public final int instanceNumber;
 
-    DicomFileInfo(Path path, long datasetOffset, Attributes fileMetaInformation, Attributes dataset) {
+    DicomFileInfo(Path path, long size, long lastModified, long datasetOffset, Attributes fileMetaInformation,
+            Attributes dataset) {
+        this(path, size, lastModified, datasetOffset, fileMetaInformation, dataset, null);
+    }
+
+    /*
+     * The strings repeated by many instances (study/series UIDs, SOP class and
+     * transfer syntax) are shared through the pool. The SOP Instance UID is
+     * unique, but is normally the same as the Media Storage SOP Instance UID, so
+     * only one copy is kept.
+     */
+    DicomFileInfo(Path path, long size, long lastModified, long datasetOffset, Attributes fileMetaInformation,
+            Attributes dataset, StringPool pool) {
         this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
         this.datasetOffset = datasetOffset;
-        this.mediaStorageSOPClassUID = fileMetaInformation.getString(Tag.MediaStorageSOPClassUID);
+        this.mediaStorageSOPClassUID = intern(pool, fileMetaInformation.getString(Tag.MediaStorageSOPClassUID));
         this.mediaStorageSOPInstanceUID = fileMetaInformation.getString(Tag.MediaStorageSOPInstanceUID);
-        this.transferSyntaxUID = fileMetaInformation.getString(Tag.TransferSyntaxUID);
-        this.studyInstanceUID = dataset.getString(Tag.StudyInstanceUID);
-        this.seriesInstanceUID = dataset.getString(Tag.SeriesInstanceUID);
+        this.transferSyntaxUID = intern(pool, fileMetaInformation.getString(Tag.TransferSyntaxUID));
+        this.studyInstanceUID = intern(pool, dataset.getString(Tag.StudyInstanceUID));
+        this.seriesInstanceUID = intern(pool, dataset.getString(Tag.SeriesInstanceUID));
         this.seriesNumber = dataset.getInt(Tag.SeriesNumber, 0);
-        this.sopInstanceUID = dataset.getString(Tag.SOPInstanceUID);
+        String sopInstanceUID = dataset.getString(Tag.SOPInstanceUID);
+        this.sopInstanceUID = ObjectUtils.equals(sopInstanceUID, this.mediaStorageSOPInstanceUID)
+                ? this.mediaStorageSOPInstanceUID
+                : sopInstanceUID;
         this.instanceNumber = dataset.getInt(Tag.InstanceNumber, 0);
     }
 
+    private static String intern(StringPool pool, String s) {
+        return pool == null ? s : pool.intern(s);
+    }
+
+    DicomFileInfo(Path path, long size, long lastModified, long datasetOffset, String mediaStorageSOPClassUID,
+            String mediaStorageSOPInstanceUID, String transferSyntaxUID, String studyInstanceUID,
+            String seriesInstanceUID, int seriesNumber, String sopInstanceUID, int instanceNumber) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.datasetOffset = datasetOffset;
+        this.mediaStorageSOPClassUID = mediaStorageSOPClassUID;
+        this.mediaStorageSOPInstanceUID = mediaStorageSOPInstanceUID;
+        this.transferSyntaxUID = transferSyntaxUID;
+        this.studyInstanceUID = studyInstanceUID;
+        this.seriesInstanceUID = seriesInstanceUID;
+        this.seriesNumber = seriesNumber;
+        this.sopInstanceUID = sopInstanceUID;
+        this.instanceNumber = instanceNumber;
+    }
+
+    DicomFileInfo(Path path, DicomFileInfo dfi) {
+        this(path, dfi.size, dfi.lastModified, dfi.datasetOffset, dfi.mediaStorageSOPClassUID, dfi.mediaStorageSOPInstanceUID,
+                dfi.transferSyntaxUID, dfi.studyInstanceUID, dfi.seriesInstanceUID, dfi.seriesNumber,
+                dfi.sopInstanceUID, dfi.instanceNumber);
+    }
+
     @Override
     public int compareTo(DicomFileInfo fi) {
         if (fi == null) {
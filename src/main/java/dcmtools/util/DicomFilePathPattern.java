@@ -8,6 +8,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -20,73 +23,138 @@ public class DicomFilePathPattern {
     public static final DicomFilePathPattern DEFAULT = new DicomFilePathPattern(DEFAULT_PATTERN);
     // @formatter:on
 
+    private static final Pattern SLASH = Pattern.compile("\\ */\\ *");
+    private static final Pattern BACKSLASH = Pattern.compile("\\ *\\\\\\ *");
+    private static final Pattern SLASHES = Pattern.compile("/{2,}");
+    private static final Pattern BACKSLASHES = Pattern.compile("\\\\{2,}");
+    private static final Pattern TAG = Pattern.compile("^[0-9abcedfABCDEF]{8}$");
+
     static String normalize(String path) {
         if (path == null) {
             return path;
         }
-        // @formatter:off
-        return path.trim()
-                .replaceAll("\\ */\\ *", "/")
-                .replaceAll("\\ *\\\\\\ *", "\\\\")
-                .replaceAll("/{2,}", "/")
-                .replaceAll("\\\\{2,}", "\\\\");
-        // @formatter:on
+        path = SLASH.matcher(path.trim()).replaceAll("/");
+        path = BACKSLASH.matcher(path).replaceAll("\\\\");
+        path = SLASHES.matcher(path).replaceAll("/");
+        return BACKSLASHES.matcher(path).replaceAll("\\\\");
     }
 
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
     private final String _pattern;
 
+    /*
+     * the pattern compiled into literal and tag segments: _literals[i] is
+     * followed by the value of _tags[i], and the last literal ends the path.
+     */
+    private final String[] _literals;
+    private final int[] _tags;
+    private final ParseException _error;
+
     public DicomFilePathPattern(String pattern) {
         _pattern = normalize(pattern);
+        List<String> literals = new ArrayList<String>();
+        List<Integer> tags = new ArrayList<Integer>();
+        ParseException error = null;
+        try {
+            parse(_pattern, literals, tags);
+        } catch (ParseException e) {
+            error = e;
+        }
+        _error = error;
+        _literals = literals.toArray(new String[literals.size()]);
+        _tags = new int[tags.size()];
+        for (int i = 0; i < _tags.length; i++) {
+            _tags[i] = tags.get(i);
+        }
+    }
+
+    private static void parse(String pattern, List<String> literals, List<Integer> tags) throws ParseException {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new ParseException("Failed to parse pattern: " + pattern, 0);
+        }
+        int from = 0;
+        while (from < pattern.length()) {
+            int cbs = pattern.indexOf('{', from);
+            if (cbs < 0) {
+                break;
+            }
+            int cbe = pattern.indexOf('}', cbs);
+            if (cbe < 0) {
+                throw new ParseException("Failed to parse pattern: " + pattern, cbs);
+            }
+            String tagStr = pattern.substring(cbs + 1, cbe).trim();
+            if (!TAG.matcher(tagStr).matches()) {
+                throw new ParseException("Failed to parse pattern: " + pattern, cbs);
+            }
+            literals.add(pattern.substring(from, cbs));
+            tags.add(Integer.parseUnsignedInt(tagStr, 16));
+            from = cbe + 1;
+        }
+        literals.add(pattern.substring(from));
     }
 
     public String pattern() {
         return _pattern;
     }
 
-    public String compile(Attributes attrs) throws ParseException {
-        if (_pattern != null && !_pattern.isEmpty()) {
-            StringBuilder sb = new StringBuilder();
-            int cbs = -1;
-            int cbe = -1;
-            int from = 0;
-            while (from < _pattern.length()) {
-                cbs = _pattern.indexOf('{', from);
-                if (cbs >= 0) {
-                    cbe = _pattern.indexOf('}', cbs);
-                    if (cbe > 0) {
-                        String tagStr = _pattern.substring(cbs + 1, cbe);
-                        tagStr = tagStr == null ? null : tagStr.trim();
-                        if (tagStr.matches("^[0-9abcedfABCDEF]{8}$")) {
-                            int tag = Integer.parseUnsignedInt(tagStr, 16);
-                            System.out.println(String.format("%08X", tag));
-                            String value = attrs.getString(tag);
-                            sb.append(_pattern.subSequence(from, cbs));
-                            if (value != null) {
-                                sb.append(FileNameUtils.tidySafeFileName(value));
-                            }
-                            from = cbe + 1;
-                            cbs = -1;
-                            cbe = -1;
-                        } else {
-                            throw new ParseException("Failed to parse pattern: " + _pattern, cbs);
-                        }
-                    } else {
-                        throw new ParseException("Failed to parse pattern: " + _pattern, cbs);
-                    }
-                } else {
-                    sb.append(_pattern.subSequence(from, _pattern.length()));
-                    from = _pattern.length();
-                }
+    /**
+     * @return the tags referenced by the pattern, in the order they appear.
+     */
+    public int[] tags() {
+        return _tags.clone();
+    }
+
+    /**
+     * @return the highest tag (as unsigned) referenced by the pattern, or 0 if it
+     *         does not reference any.
+     */
+    public int maxTag() {
+        int max = 0;
+        for (int tag : _tags) {
+            if (Integer.compareUnsigned(tag, max) > 0) {
+                max = tag;
             }
-            if (sb.length() > 0) {
-                return normalize(sb.toString());
+        }
+        return max;
+    }
+
+    /**
+     * @return the tag to stop reading the data set at: the tag after
+     *         {@link #maxTag()}, but no further than the pixel data.
+     */
+    public int stopTag() {
+        int maxTag = maxTag();
+        return Integer.compareUnsigned(maxTag, Tag.PixelData) >= 0 ? Tag.PixelData : maxTag + 1;
+    }
+
+    public String compile(Attributes attrs) throws ParseException {
+        if (_error != null) {
+            throw new ParseException(_error.getMessage(), _error.getErrorOffset());
+        }
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        for (int i = 0; i < _tags.length; i++) {
+            sb.append(_literals[i]);
+            String value = attrs.getString(_tags[i]);
+            if (value != null) {
+                sb.append(FileNameUtils.tidySafeFileName(value));
             }
         }
+        sb.append(_literals[_tags.length]);
+        if (sb.length() > 0) {
+            return normalize(sb.toString());
+        }
         throw new ParseException("Failed to parse pattern: " + _pattern, 0);
     }
 
     public String compile(DicomInputStream dis) throws IOException, ParseException {
-        return compile(DicomFileUtils.getDicomAttributes(dis, false, true));
+        return compile(DicomFileUtils.getDicomAttributes(dis, stopTag(), false, true));
     }
 
     public String compile(Path dicomFile) throws IOException, ParseException {
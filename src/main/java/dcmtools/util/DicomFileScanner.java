@@ -0,0 +1,262 @@
+package dcmtools.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.ContentHandlerAdapter;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+
+/**
+ * Finds DICOM files and reads the header attributes needed by
+ * {@link DicomFileInfo}. The handler is called for each DICOM file as soon as
+ * it is parsed. If the scanner uses more than one thread, the handler is
+ * called concurrently from the worker threads.
+ */
+public class DicomFileScanner {
+
+    public static interface Handler {
+        void handle(DicomFileInfo dfi) throws Exception;
+    }
+
+    private static Logger logger = LogManager.getLogger(DicomFileScanner.class);
+
+    /*
+     * DicomFileInfo does not need anything beyond Instance Number (0020,0013), so
+     * scanning stops there instead of reading the whole object.
+     */
+    private static final int SCAN_STOP_TAG = Tag.InstanceNumber + 1;
+
+    private final int _nbThreads;
+
+    private final DicomFileIndex _index;
+
+    private final StringPool _strings;
+
+    private SAXParser _saxParser;
+
+    /**
+     * Constructor.
+     *
+     * @param nbThreads Number of threads to walk the directories and parse the
+     *                  files.
+     * @param index     The scan index to skip the unchanged files. Can be null.
+     */
+    public DicomFileScanner(int nbThreads, DicomFileIndex index) {
+        _nbThreads = nbThreads;
+        _index = index;
+        _strings = index == null ? new StringPool() : index.strings();
+    }
+
+    public DicomFileScanner(int nbThreads) {
+        this(nbThreads, null);
+    }
+
+    public DicomFileScanner() {
+        this(1);
+    }
+
+    public int threads() {
+        return _nbThreads;
+    }
+
+    public DicomFileIndex index() {
+        return _index;
+    }
+
+    public void scan(Path path, boolean followLinks, final Handler handler) throws Exception {
+        if (Files.isDirectory(path)) {
+            scanDirectory(path, followLinks, handler);
+        } else {
+            DicomFileInfo dfi = scanFile(path);
+            if (dfi != null) {
+                handler.handle(dfi);
+            }
+        }
+    }
+
+    private void scanDirectory(Path dir, boolean followLinks, final Handler handler) throws IOException {
+        if (_nbThreads > 1) {
+            new ParallelFileWalker(_nbThreads, followLinks).walk(dir, new ParallelFileWalker.FileHandler() {
+                @Override
+                public void visitFile(Path f, BasicFileAttributes attrs) throws Exception {
+                    DicomFileInfo dfi = scanFile(f, attrs);
+                    if (dfi != null) {
+                        handler.handle(dfi);
+                    }
+                }
+            });
+            return;
+        }
+        Files.walkFileTree(dir,
+                followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class),
+                Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                        try {
+                            DicomFileInfo dfi = scanFile(f, attrs);
+                            if (dfi != null) {
+                                handler.handle(dfi);
+                            }
+                        } catch (Throwable e) {
+                            if (e instanceof IOException) {
+                                throw (IOException) e;
+                            } else {
+                                throw new IOException(e);
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+                        logger.warn("Failed to visit file: '" + file + "'");
+                        if (ioe != null) {
+                            logger.error(ioe.getMessage(), ioe);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) {
+                        if (ioe != null) {
+                            logger.error(ioe.getMessage(), ioe);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        return super.preVisitDirectory(dir, attrs);
+                    }
+                });
+    }
+
+    /**
+     * Reads the file info.
+     *
+     * @param f The file.
+     * @return the file info or null if it is not a DICOM file.
+     * @throws Exception
+     */
+    public DicomFileInfo scanFile(Path f) throws Exception {
+        return scanFile(f, Files.readAttributes(f, BasicFileAttributes.class));
+    }
+
+    /**
+     * Reads the file info, or gets it from the scan index if the file has not
+     * changed since it was indexed.
+     *
+     * @param f     The file.
+     * @param attrs The file attributes.
+     * @return the file info or null if it is not a DICOM file.
+     * @throws Exception
+     */
+    public DicomFileInfo scanFile(Path f, BasicFileAttributes attrs) throws Exception {
+        if (attrs.isSymbolicLink()) {
+            attrs = Files.readAttributes(f, BasicFileAttributes.class);
+        }
+        if (_index == null) {
+            return parseFile(f, attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+        boolean[] found = new boolean[1];
+        DicomFileInfo dfi = _index.get(f, attrs, found);
+        if (found[0]) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("file: '" + f + "' is unchanged since indexed.");
+            }
+            return dfi;
+        }
+        dfi = parseFile(f, attrs.size(), attrs.lastModifiedTime().toMillis());
+        _index.put(f, attrs, dfi);
+        return dfi;
+    }
+
+    private DicomFileInfo parseFile(Path f, long size, long lastModified) throws Exception {
+        if (f.toString().toLowerCase().endsWith(".xml")) {
+            Attributes ds = new Attributes();
+            ContentHandlerAdapter ch = new ContentHandlerAdapter(ds);
+            synchronized (this) {
+                if (_saxParser == null) {
+                    _saxParser = SAXParserFactory.newInstance().newSAXParser();
+                }
+                _saxParser.parse(f.toFile(), ch);
+            }
+            Attributes fmi = ch.getFileMetaInformation();
+            if (fmi == null) {
+                fmi = ds.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+            }
+            logger.info("adding parsed DICOM file: '" + f + "'");
+            return new DicomFileInfo(f, size, lastModified, -1, fmi, ds, _strings);
+        } else {
+            DicomFileInfo dfi = readDicomFile(f, size, lastModified);
+            if (dfi != null) {
+                logger.info("adding DICOM file: '" + f + "'");
+            } else {
+                logger.info("file: '" + f + "' is not a DICOM file. Skipped.");
+            }
+            return dfi;
+        }
+    }
+
+    /**
+     * Sniffs and parses the file using a single open. The buffered prefix used to
+     * detect the DICOM file is reset and handed to the parser.
+     *
+     * @param f            The file.
+     * @param size         The file size.
+     * @param lastModified The file last modified time.
+     * @return the file info or null if it is not a DICOM file.
+     * @throws IOException
+     */
+    private DicomFileInfo readDicomFile(Path f, long size, long lastModified) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(f))) {
+            boolean hasDicomPrefix = DicomFileUtils.isDicomFile(in);
+            try {
+                return readDicomFile(f, size, lastModified, in, hasDicomPrefix);
+            } catch (Throwable e) {
+                if (hasDicomPrefix) {
+                    throw e;
+                }
+                // not recognizable as DICOM
+                return null;
+            }
+        }
+    }
+
+    private DicomFileInfo readDicomFile(Path f, long size, long lastModified, InputStream in, boolean hasDicomPrefix)
+            throws IOException {
+        try (DicomInputStream dis = new DicomInputStream(in)) {
+            Attributes fmi = dis.getFileMetaInformation();
+            long dsOffset = dis.getPosition();
+            dis.setIncludeBulkData(IncludeBulkData.NO);
+            Attributes ds = DicomFileUtils.readDataset(dis, SCAN_STOP_TAG);
+            if (!hasDicomPrefix && !DicomFileUtils.hasNecessaryAttributes(fmi, ds, dis.getTransferSyntax())) {
+                return null;
+            }
+            if (fmi == null || !fmi.containsValue(Tag.TransferSyntaxUID)
+                    || !fmi.containsValue(Tag.MediaStorageSOPClassUID)
+                    || !fmi.containsValue(Tag.MediaStorageSOPInstanceUID)) {
+                fmi = ds.createFileMetaInformation(dis.getTransferSyntax());
+            }
+            return new DicomFileInfo(f, size, lastModified, dsOffset, fmi, ds, _strings);
+        }
+    }
+
+}
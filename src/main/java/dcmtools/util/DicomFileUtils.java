@@ -9,16 +9,25 @@ import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputHandler;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 
@@ -100,9 +109,6 @@ public class DicomFileUtils {
 	}
 
 	public static boolean isDicomFile(Path f) throws IOException {
-		if (Files.size(f) <= 0) {
-			return false;
-		}
 		try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(f))) {
 			if (isDicomFile(in)) {
 				return true;
@@ -119,29 +125,85 @@ public class DicomFileUtils {
 	public static boolean hasNecessaryAttributes(InputStream in) throws IOException {
 		try (DicomInputStream dis = new DicomInputStream(in)) {
 			Attributes attrs = dis.readDataset(-1, Tag.PixelData);
-			boolean hasSopInstanceUID = attrs.getString(Tag.SOPInstanceUID) != null
-					|| attrs.getString(Tag.MediaStorageSOPInstanceUID) != null;
-			boolean hasSopClassUID = attrs.getString(Tag.SOPClassUID) != null
-					|| attrs.getString(Tag.MediaStorageSOPClassUID) != null;
-			boolean hasTransferSyntax = attrs.getString(Tag.TransferSyntaxUID) != null
-					|| dis.getTransferSyntax() != null;
-			return hasSopClassUID && hasSopInstanceUID && hasTransferSyntax;
+			return hasNecessaryAttributes(null, attrs, dis.getTransferSyntax());
 		}
 	}
 
+	public static boolean hasNecessaryAttributes(Attributes fmi, Attributes attrs, String transferSyntax) {
+		boolean hasSopInstanceUID = attrs.getString(Tag.SOPInstanceUID) != null
+				|| attrs.getString(Tag.MediaStorageSOPInstanceUID) != null
+				|| (fmi != null && fmi.getString(Tag.MediaStorageSOPInstanceUID) != null);
+		boolean hasSopClassUID = attrs.getString(Tag.SOPClassUID) != null
+				|| attrs.getString(Tag.MediaStorageSOPClassUID) != null
+				|| (fmi != null && fmi.getString(Tag.MediaStorageSOPClassUID) != null);
+		boolean hasTransferSyntax = attrs.getString(Tag.TransferSyntaxUID) != null
+				|| (fmi != null && fmi.getString(Tag.TransferSyntaxUID) != null) || transferSyntax != null;
+		return hasSopClassUID && hasSopInstanceUID && hasTransferSyntax;
+	}
+
 	public static Set<Path> getDicomFiles(Path dir, boolean followLinks) throws IOException {
 		Set<Path> dicomFiles = new LinkedHashSet<Path>();
 		addDicomFiles(dir, followLinks, dicomFiles);
 		return dicomFiles;
 	}
 
+	public static Set<Path> getDicomFiles(Path dir, boolean followLinks, int nbThreads) throws IOException {
+		return getDicomFiles(dir, followLinks, nbThreads, null);
+	}
+
+	/**
+	 * @param filter Only the files it matches are sniffed. Can be null.
+	 */
+	public static Set<Path> getDicomFiles(Path dir, boolean followLinks, int nbThreads, PathMatcher filter)
+			throws IOException {
+		Set<Path> dicomFiles = new LinkedHashSet<Path>();
+		addDicomFiles(dir, followLinks, nbThreads, filter, dicomFiles);
+		return dicomFiles;
+	}
+
+	public static void addDicomFiles(Path root, boolean followLinks, int nbThreads, Set<Path> dicomFiles)
+			throws IOException {
+		addDicomFiles(root, followLinks, nbThreads, null, dicomFiles);
+	}
+
+	/**
+	 * Adds the DICOM files in the directory tree. If nbThreads is greater than 1,
+	 * the tree is walked and the files are sniffed in parallel, and the files are
+	 * added in path order. The files not matched by the filter (if not null) are
+	 * skipped without being opened.
+	 */
+	public static void addDicomFiles(Path root, boolean followLinks, int nbThreads, final PathMatcher filter,
+			Set<Path> dicomFiles) throws IOException {
+		if (nbThreads <= 1) {
+			addDicomFiles(root, followLinks, filter, dicomFiles);
+			return;
+		}
+		final Queue<Path> found = new ConcurrentLinkedQueue<Path>();
+		new ParallelFileWalker(nbThreads, followLinks).walk(root, new ParallelFileWalker.FileHandler() {
+			@Override
+			public void visitFile(Path f, BasicFileAttributes attrs) throws Exception {
+				if ((filter == null || filter.matches(f)) && isDicomFile(f)) {
+					found.add(f);
+				}
+			}
+		});
+		List<Path> sorted = new ArrayList<Path>(found);
+		Collections.sort(sorted);
+		dicomFiles.addAll(sorted);
+	}
+
 	public static void addDicomFiles(Path root, boolean followLinks, Set<Path> dicomFiles) throws IOException {
+		addDicomFiles(root, followLinks, null, dicomFiles);
+	}
+
+	private static void addDicomFiles(Path root, boolean followLinks, final PathMatcher filter,
+			final Set<Path> dicomFiles) throws IOException {
 		Files.walkFileTree(root,
 				followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class),
 				Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
 					@Override
 					public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
-						if (isDicomFile(f)) {
+						if ((filter == null || filter.matches(f)) && isDicomFile(f)) {
 							dicomFiles.add(f);
 						}
 						return FileVisitResult.CONTINUE;
@@ -171,12 +233,108 @@ public class DicomFileUtils {
 				});
 	}
 
+	@SuppressWarnings("serial")
+	private static class StopTagReached extends IOException {
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/*
+	 * stops at the first top level attribute whose tag is not less than the stop
+	 * tag, whether or not the stop tag itself is present.
+	 */
+	private static class StopTagHandler implements DicomInputHandler {
+
+		private final int _stopTag;
+
+		StopTagHandler(int stopTag) {
+			_stopTag = stopTag;
+		}
+
+		@Override
+		public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
+			if (dis.level() == 0 && Integer.compareUnsigned(dis.tag(), _stopTag) >= 0) {
+				throw new StopTagReached();
+			}
+			dis.readValue(dis, attrs);
+		}
+
+		@Override
+		public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
+			dis.readValue(dis, seq);
+		}
+
+		@Override
+		public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
+			dis.readValue(dis, frags);
+		}
+
+		@Override
+		public void startDataset(DicomInputStream dis) throws IOException {
+		}
+
+		@Override
+		public void endDataset(DicomInputStream dis) throws IOException {
+		}
+	}
+
+	/**
+	 * Reads the data set up to (excluding) the first attribute whose tag is
+	 * greater than or equal to the stop tag. The header of that attribute has been
+	 * read from the stream when it returns.
+	 * 
+	 * @param dis     The input stream.
+	 * @param stopTag The stop tag, or -1 to read the whole data set.
+	 * @return the attributes read.
+	 * @throws IOException
+	 */
+	public static Attributes readDataset(DicomInputStream dis, int stopTag) throws IOException {
+		if (stopTag == -1) {
+			return dis.readDataset(-1, -1);
+		}
+		dis.readFileMetaInformation();
+		Attributes attrs = new Attributes(dis.bigEndian(), 64);
+		readDataset(dis, stopTag, attrs);
+		attrs.trimToSize();
+		return attrs;
+	}
+
+	/**
+	 * Reads the data set into the specified attributes, up to (excluding) the
+	 * first top level attribute whose tag is greater than or equal to the stop
+	 * tag. The file meta information must have been read.
+	 * 
+	 * @param dis     The input stream.
+	 * @param stopTag The stop tag.
+	 * @param attrs   The attributes to read into.
+	 * @return the stream position of the attribute it stopped at, or -1 if the
+	 *         end of the data set was reached.
+	 * @throws IOException
+	 */
+	public static long readDataset(DicomInputStream dis, int stopTag, Attributes attrs) throws IOException {
+		dis.setDicomInputHandler(new StopTagHandler(stopTag));
+		try {
+			/*
+			 * no stop tag here: the stream returns on the stop tag itself before the
+			 * handler is called, so its position would be lost.
+			 */
+			dis.readAttributes(attrs, -1, -1);
+		} catch (StopTagReached e) {
+			return dis.getTagPosition();
+		} finally {
+			dis.setDicomInputHandler(dis);
+		}
+		return -1;
+	}
+
 	public static Attributes getDicomAttributes(DicomInputStream dis, int stopTag, boolean includeBulkData,
 			boolean includeFileMetaInfo) throws IOException {
 		if (!includeBulkData && dis.getIncludeBulkData() != IncludeBulkData.NO) {
 			dis.setIncludeBulkData(IncludeBulkData.NO);
 		}
-		Attributes attrs = dis.readDataset(-1, stopTag);
+		Attributes attrs = readDataset(dis, stopTag);
 		if (includeFileMetaInfo) {
 			attrs.addAll(dis.getFileMetaInformation());
 		}
@@ -192,6 +350,21 @@ public class DicomFileUtils {
 		return getDicomAttributes(dis, Tag.PixelData, false, true);
 	}
 
+	/**
+	 * Reads the attributes (including the file meta information) up to the stop
+	 * tag.
+	 * 
+	 * @param f       The DICOM file.
+	 * @param stopTag The stop tag, e.g. {@link AttributesPathFormat#stopTag()}.
+	 * @return the attributes.
+	 * @throws IOException
+	 */
+	public static Attributes getDicomAttributes(Path f, int stopTag) throws IOException {
+		try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
+			return getDicomAttributes(dis, stopTag, false, true);
+		}
+	}
+
 	public static Attributes getDicomAttributes(Path f, boolean includeBulkData) throws IOException {
 		try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
 			return getDicomAttributes(dis, includeBulkData, true);
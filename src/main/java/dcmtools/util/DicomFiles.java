@@ -1,40 +1,36 @@
 package dcmtools.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+public class DicomFiles extends TreeSet<DicomFileInfo> {
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Tag;
-import org.dcm4che3.data.UID;
-import org.dcm4che3.io.ContentHandlerAdapter;
-import org.dcm4che3.io.DicomInputStream;
+    private static final long serialVersionUID = -2990819678387165831L;
 
-public class DicomFiles extends TreeSet<DicomFileInfo> {
+    private Map<String, String> _tss = new LinkedHashMap<String, String>();
 
-    private static Logger logger = LogManager.getLogger(DicomFiles.class);
+    private final DicomFileScanner _scanner;
 
-    private static final long serialVersionUID = -2990819678387165831L;
+    public DicomFiles(int scanThreads, DicomFileIndex index) {
+        _scanner = new DicomFileScanner(scanThreads, index);
+    }
 
-    private SAXParser _saxParser;
+    public DicomFiles(int scanThreads) {
+        this(scanThreads, null);
+    }
 
-    private Map<String, String> _tss = new LinkedHashMap<String, String>();
+    public DicomFiles() {
+        this(1);
+    }
 
     public void add(List<Path> sources, boolean followLinks) throws Throwable {
         if (sources != null) {
@@ -46,103 +42,132 @@ public class DicomFiles extends TreeSet<DicomFileInfo> {
 
     public void add(Path f, boolean followLinks) throws Exception {
         if (Files.isDirectory(f)) {
-            addDirectory(f, followLinks);
+            addDirectory(f, followLinks, _scanner);
         } else {
             addFile(f);
         }
     }
 
     public boolean addFile(Path f) throws Exception {
-        if (f.toString().toLowerCase().endsWith(".xml")) {
-            if (_saxParser == null) {
-                _saxParser = SAXParserFactory.newInstance().newSAXParser();
-            }
-            Attributes ds = new Attributes();
-            ContentHandlerAdapter ch = new ContentHandlerAdapter(ds);
-            _saxParser.parse(f.toFile(), ch);
-            Attributes fmi = ch.getFileMetaInformation();
-            if (fmi == null) {
-                fmi = ds.createFileMetaInformation(UID.ExplicitVRLittleEndian);
-            }
-            logger.info("adding parsed DICOM file: '" + f + "'");
-            DicomFileInfo dfi = new DicomFileInfo(f, -1, fmi, ds);
-            _tss.put(dfi.mediaStorageSOPClassUID, dfi.transferSyntaxUID);
-            return add(dfi);
-        } else if (DicomFileUtils.isDicomFile(f)) {
-            try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
-                Attributes fmi = dis.getFileMetaInformation();
-                long dsOffset = dis.getPosition();
-                Attributes ds = dis.readDataset(-1, -1);
-                if (fmi == null || !fmi.containsValue(Tag.TransferSyntaxUID)
-                        || !fmi.containsValue(Tag.MediaStorageSOPClassUID)
-                        || !fmi.containsValue(Tag.MediaStorageSOPInstanceUID)) {
-                    fmi = ds.createFileMetaInformation(dis.getTransferSyntax());
-                }
-                logger.info("adding DICOM file: '" + f + "'");
-                DicomFileInfo dfi = new DicomFileInfo(f, dsOffset, fmi, ds);
-                _tss.put(dfi.mediaStorageSOPClassUID, dfi.transferSyntaxUID);
-                return add(dfi);
-            }
-        } else {
-            logger.info("file: '" + f + "' is not a DICOM file. Skipped.");
-        }
-        return false;
+        DicomFileInfo dfi = _scanner.scanFile(f);
+        return dfi != null && add(dfi);
     }
 
     public void addDirectory(Path dir, boolean followLinks) throws IOException {
+        addDirectory(dir, followLinks, 1);
+    }
 
-        Files.walkFileTree(dir,
-                followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class),
-                Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
-                        try {
-                            addFile(f);
-                        } catch (Throwable e) {
-                            if (e instanceof IOException) {
-                                throw (IOException) e;
-                            } else {
-                                throw new IOException(e);
-                            }
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult visitFileFailed(Path file, IOException ioe) {
-                        logger.warn("Failed to visit file: '" + file + "'");
-                        if (ioe != null) {
-                            logger.error(ioe.getMessage(), ioe);
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) {
-                        if (ioe != null) {
-                            logger.error(ioe.getMessage(), ioe);
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
+    /**
+     * Adds the DICOM files in the directory.
+     * 
+     * @param dir         The directory.
+     * @param followLinks Follow symbolic links.
+     * @param nbThreads   Number of threads to walk the directory tree and parse
+     *                    the files. If it is greater than 1, the sub-directories
+     *                    are walked and the files are parsed in parallel, and the
+     *                    results are merged at the end.
+     * @throws IOException
+     */
+    public void addDirectory(Path dir, boolean followLinks, int nbThreads) throws IOException {
+        addDirectory(dir, followLinks, nbThreads == _scanner.threads() ? _scanner : new DicomFileScanner(nbThreads, _scanner.index()));
+    }
 
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        return super.preVisitDirectory(dir, attrs);
-                    }
-                });
+    private void addDirectory(Path dir, boolean followLinks, DicomFileScanner scanner) throws IOException {
+        final Queue<DicomFileInfo> dfis = new ConcurrentLinkedQueue<DicomFileInfo>();
+        try {
+            scanner.scan(dir, followLinks, new DicomFileScanner.Handler() {
+                @Override
+                public void handle(DicomFileInfo dfi) {
+                    dfis.add(dfi);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        for (DicomFileInfo dfi : dfis) {
+            add(dfi);
+        }
+    }
 
+    @Override
+    public boolean add(DicomFileInfo dfi) {
+        _tss.put(dfi.mediaStorageSOPClassUID, dfi.transferSyntaxUID);
+        return super.add(dfi);
     }
 
     public Map<String, String> transferSyntax() {
         return Collections.unmodifiableMap(_tss);
     }
 
+    /**
+     * Splits the files into at most n partitions of similar size. The files of a
+     * series are always kept together (and in order) in the same partition.
+     * 
+     * @param n The maximum number of partitions.
+     * @return the non-empty partitions.
+     */
+    public List<DicomFiles> partition(int n) {
+        List<DicomFiles> partitions = new ArrayList<DicomFiles>();
+        if (n <= 1 || isEmpty()) {
+            partitions.add(this);
+            return partitions;
+        }
+        for (int i = 0; i < n; i++) {
+            partitions.add(new DicomFiles());
+        }
+        DicomFiles partition = null;
+        DicomFileInfo prev = null;
+        for (DicomFileInfo dfi : this) {
+            if (prev == null || !ObjectUtils.equals(prev.studyInstanceUID, dfi.studyInstanceUID)
+                    || !ObjectUtils.equals(prev.seriesInstanceUID, dfi.seriesInstanceUID)) {
+                // new series: assign to the smallest partition
+                partition = partitions.get(0);
+                for (DicomFiles p : partitions) {
+                    if (p.size() < partition.size()) {
+                        partition = p;
+                    }
+                }
+            }
+            partition.add(dfi);
+            prev = dfi;
+        }
+        for (int i = partitions.size() - 1; i >= 0; i--) {
+            if (partitions.get(i).isEmpty()) {
+                partitions.remove(i);
+            }
+        }
+        return partitions;
+    }
+
     public static DicomFiles scan(Path... paths) throws Exception {
         return scan(true, paths);
     }
 
     public static DicomFiles scan(boolean followLinks, Path... paths) throws Exception {
-        DicomFiles dfs = new DicomFiles();
+        return scan(followLinks, 1, paths);
+    }
+
+    public static DicomFiles scan(boolean followLinks, int nbThreads, Path... paths) throws Exception {
+        return scan(followLinks, nbThreads, null, paths);
+    }
+
+    /**
+     * Scans the DICOM files.
+     * 
+     * @param followLinks Follow symbolic links.
+     * @param nbThreads   Number of threads to scan the directories.
+     * @param index       The scan index. Only the files that are new or modified
+     *                    since they were indexed are parsed. Can be null. It is
+     *                    updated but not saved.
+     * @param paths       The files or directories.
+     * @return the DICOM files.
+     * @throws Exception
+     */
+    public static DicomFiles scan(boolean followLinks, int nbThreads, DicomFileIndex index, Path... paths)
+            throws Exception {
+        DicomFiles dfs = new DicomFiles(nbThreads, index);
         for (Path path : paths) {
             dfs.add(path, followLinks);
         }
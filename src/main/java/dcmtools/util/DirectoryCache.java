@@ -0,0 +1,98 @@
+package dcmtools.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the directories that are known to exist, so that writing many
+ * files into the same directories does not check (and create) their parent
+ * directories for every file. The cache is thread safe and keeps the most
+ * recently used directories up to its capacity.
+ *
+ * A directory removed by someone else after it was cached is not noticed until
+ * writing into it fails: callers should then {@link #invalidate(Path)} it and
+ * retry.
+ */
+public class DirectoryCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Map<Path, Boolean> _dirs;
+
+    @SuppressWarnings("serial")
+    public DirectoryCache(final int capacity) {
+        _dirs = new LinkedHashMap<Path, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public DirectoryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the directory (and its missing parents) unless it is already
+     * known to exist.
+     *
+     * @param dir The directory.
+     * @throws IOException
+     */
+    public void createDirectories(Path dir) throws IOException {
+        synchronized (_dirs) {
+            if (_dirs.get(dir) != null) {
+                return;
+            }
+        }
+        Files.createDirectories(dir);
+        synchronized (_dirs) {
+            _dirs.put(dir, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Creates the parent directory of the file unless it is already known to
+     * exist.
+     *
+     * @param file The file.
+     * @throws IOException
+     */
+    public void createParentDirectories(Path file) throws IOException {
+        Path dir = file.getParent();
+        if (dir != null) {
+            createDirectories(dir);
+        }
+    }
+
+    /**
+     * Forgets the directory and its sub-directories, e.g. after writing into it
+     * failed because it no longer exists.
+     *
+     * @param dir The directory.
+     */
+    public void invalidate(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        synchronized (_dirs) {
+            for (Iterator<Path> it = _dirs.keySet().iterator(); it.hasNext();) {
+                if (it.next().startsWith(dir)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (_dirs) {
+            _dirs.clear();
+        }
+    }
+
+}
@@ -1,11 +1,16 @@
 package dcmtools.util;
 
+import java.util.regex.Pattern;
+
 public class FileNameUtils {
 
+    private static final Pattern SPACES = Pattern.compile("\\ {2,}+");
+    private static final Pattern SPECIAL_CHARS = Pattern.compile("[\\/:*?\"<>|]");
+
     public static String tidySafeFileName(String name, String specialCharReplacement, int maxLength) {
-        name = name.trim().replaceAll("\\ {2,}+", " ");
-        name = name.replaceAll("[\\/:*?\"<>|]", specialCharReplacement);
-        name = name.replaceAll("\\ {2,}+", " ").trim();
+        name = SPACES.matcher(name.trim()).replaceAll(" ");
+        name = SPECIAL_CHARS.matcher(name).replaceAll(specialCharReplacement);
+        name = SPACES.matcher(name).replaceAll(" ").trim();
         if (maxLength > 0 && name.length() > maxLength) {
             return name.substring(0, maxLength).trim();
         } else {
@@ -0,0 +1,200 @@
+package dcmtools.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Walks a directory tree with fork/join. Each directory is listed by its own
+ * task and the files are handed to the handler in small batches on the worker
+ * threads, so the number of threads also bounds the number of files being
+ * processed at the same time.
+ */
+public class ParallelFileWalker {
+
+    public static interface FileHandler {
+        void visitFile(Path f, BasicFileAttributes attrs) throws Exception;
+    }
+
+    private static final Logger logger = LogManager.getLogger(ParallelFileWalker.class);
+
+    private static final int BATCH_SIZE = 32;
+
+    private final int _nbThreads;
+    private final boolean _followLinks;
+
+    public ParallelFileWalker(int nbThreads, boolean followLinks) {
+        _nbThreads = nbThreads > 0 ? nbThreads : Runtime.getRuntime().availableProcessors();
+        _followLinks = followLinks;
+    }
+
+    public void walk(Path root, FileHandler handler) throws IOException {
+        Walk walk = new Walk(handler);
+        BasicFileAttributes attrs = walk.readAttributes(root);
+        if (!attrs.isDirectory()) {
+            try {
+                handler.visitFile(root, attrs);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(_nbThreads);
+        try {
+            if (walk.enter(root, attrs)) {
+                pool.invoke(walk.new DirectoryTask(root));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        walk.rethrow();
+    }
+
+    private class Walk {
+
+        private final FileHandler _handler;
+        private final Set<Object> _visited = ConcurrentHashMap.newKeySet();
+        private final AtomicReference<Throwable> _failure = new AtomicReference<Throwable>();
+
+        Walk(FileHandler handler) {
+            _handler = handler;
+        }
+
+        BasicFileAttributes readAttributes(Path f) throws IOException {
+            if (_followLinks) {
+                try {
+                    return Files.readAttributes(f, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // broken link
+                }
+            }
+            return Files.readAttributes(f, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+
+        boolean enter(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (!_followLinks) {
+                return true;
+            }
+            Object key = attrs.fileKey() != null ? attrs.fileKey() : dir.toRealPath();
+            if (_visited.add(key)) {
+                return true;
+            }
+            logger.warn("Skipped directory: '" + dir + "' (already visited via another link)");
+            return false;
+        }
+
+        boolean failed() {
+            return _failure.get() != null;
+        }
+
+        void rethrow() throws IOException {
+            Throwable e = _failure.get();
+            if (e == null) {
+                return;
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            } else {
+                throw new IOException(e);
+            }
+        }
+
+        @SuppressWarnings("serial")
+        class DirectoryTask extends RecursiveAction {
+
+            private final Path _dir;
+
+            DirectoryTask(Path dir) {
+                _dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                if (failed()) {
+                    return;
+                }
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                FileTask files = new FileTask();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(_dir)) {
+                    for (Path f : stream) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = readAttributes(f);
+                        } catch (IOException ioe) {
+                            logger.warn("Failed to visit file: '" + f + "'");
+                            logger.error(ioe.getMessage(), ioe);
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            if (enter(f, attrs)) {
+                                tasks.add(new DirectoryTask(f));
+                            }
+                        } else {
+                            files.add(f, attrs);
+                            if (files.size() >= BATCH_SIZE) {
+                                tasks.add(files);
+                                files = new FileTask();
+                            }
+                        }
+                    }
+                } catch (IOException ioe) {
+                    logger.error(ioe.getMessage(), ioe);
+                }
+                if (files.size() > 0) {
+                    tasks.add(files);
+                }
+                invokeAll(tasks);
+            }
+        }
+
+        @SuppressWarnings("serial")
+        class FileTask extends RecursiveAction {
+
+            private final List<Path> _files = new ArrayList<Path>(BATCH_SIZE);
+            private final List<BasicFileAttributes> _attrs = new ArrayList<BasicFileAttributes>(BATCH_SIZE);
+
+            void add(Path f, BasicFileAttributes attrs) {
+                _files.add(f);
+                _attrs.add(attrs);
+            }
+
+            int size() {
+                return _files.size();
+            }
+
+            @Override
+            protected void compute() {
+                for (int i = 0; i < _files.size(); i++) {
+                    if (failed()) {
+                        return;
+                    }
+                    try {
+                        _handler.visitFile(_files.get(i), _attrs.get(i));
+                    } catch (Throwable e) {
+                        _failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        }
+    }
+
+}
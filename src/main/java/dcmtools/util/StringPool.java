@@ -0,0 +1,28 @@
+package dcmtools.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread safe pool to share a single instance of equal strings, e.g. the
+ * Study/Series Instance UIDs and SOP Class UIDs which are repeated by every
+ * instance of a scanned file set. Unlike {@link String#intern()}, the strings
+ * are released with the pool.
+ */
+public class StringPool {
+
+    private final ConcurrentMap<String, String> _strings = new ConcurrentHashMap<String, String>();
+
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String pooled = _strings.putIfAbsent(s, s);
+        return pooled == null ? s : pooled;
+    }
+
+    public int size() {
+        return _strings.size();
+    }
+
+}
@@ -0,0 +1,89 @@
+package dcmtools.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DicomModifyTest {
+
+	private static final String SOP_INSTANCE_UID = "1.2.3.4.5.6.7.8.9";
+
+	private Path _dir;
+
+	@Before
+	public void setUp() throws IOException {
+		_dir = Files.createTempDirectory("dicom-modify-test");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(_dir)) {
+			for (Path f : stream) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(_dir);
+	}
+
+	@Test
+	public void testUpdateKeepsPixelData() throws IOException {
+		byte[] pixelData = pixelData(64 * 1024 + 7);
+		Path src = writeDicomFile(pixelData);
+		Path dst = _dir.resolve("dst.dcm");
+
+		Attributes dsUpdate = new Attributes();
+		dsUpdate.setString(Tag.PatientName, VR.PN, "Test^Updated");
+		DicomModify.updateDicomFile(src, dst, null, null, dsUpdate, null);
+
+		Attributes ds = readDicomFile(dst);
+		assertEquals("Test^Updated", ds.getString(Tag.PatientName));
+		assertEquals(SOP_INSTANCE_UID, ds.getString(Tag.SOPInstanceUID));
+		assertArrayEquals(pixelData, ds.getBytes(Tag.PixelData));
+	}
+
+	private Path writeDicomFile(byte[] pixelData) throws IOException {
+		Attributes ds = new Attributes();
+		ds.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+		ds.setString(Tag.SOPInstanceUID, VR.UI, SOP_INSTANCE_UID);
+		ds.setString(Tag.PatientName, VR.PN, "Test^Original");
+		ds.setBytes(Tag.PixelData, VR.OB, pixelData);
+		Attributes fmi = ds.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+		Path f = _dir.resolve("src.dcm");
+		try (DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(Files.newOutputStream(f)),
+				UID.ExplicitVRLittleEndian)) {
+			dos.writeDataset(fmi, ds);
+		}
+		return f;
+	}
+
+	private static Attributes readDicomFile(Path f) throws IOException {
+		try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
+			return dis.readDataset(-1, -1);
+		}
+	}
+
+	private static byte[] pixelData(int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (i * 31 + 7);
+		}
+		return b;
+	}
+
+}
@@ -0,0 +1,110 @@
+package dcmtools.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TidyJournalTest {
+
+	private static final String TMP_EXT = ".part.tmp";
+
+	private Path _dir;
+
+	@Before
+	public void setUp() throws IOException {
+		_dir = Files.createTempDirectory("tidy-journal-test");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		delete(_dir);
+	}
+
+	@Test
+	public void testTornLastLine() throws IOException {
+		Path journalFile = _dir.resolve("journal");
+		Path src1 = createFile(_dir.resolve("src1.dcm"));
+		Path src2 = createFile(_dir.resolve("src2.dcm"));
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			journal.begin(src1, _dir.resolve("dst1.dcm"));
+			journal.done(src1, _dir.resolve("dst1.dcm"));
+		}
+		// killed while writing the DONE record of the second file
+		String torn = "DONE\t" + src2.toAbsolutePath() + "\t" + _dir.toAbsolutePath();
+		Files.write(journalFile, torn.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			assertTrue(journal.isDone(src1));
+			assertFalse(journal.isDone(src2));
+			journal.begin(src2, _dir.resolve("dst2.dcm"));
+			journal.done(src2, _dir.resolve("dst2.dcm"));
+		}
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			assertTrue(journal.isDone(src1));
+			assertTrue(journal.isDone(src2));
+			assertEquals(2, journal.doneCount());
+		}
+		List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+		assertEquals(torn, lines.get(2));
+		assertTrue(lines.get(3).startsWith("BEGIN\t"));
+	}
+
+	@Test
+	public void testRecoverInterruptedBegin() throws IOException {
+		Path journalFile = _dir.resolve("journal");
+		Path dstDir = Files.createDirectory(_dir.resolve("dst"));
+		Path src1 = createFile(_dir.resolve("src1.dcm"));
+		Path dst1 = dstDir.resolve("dst1.dcm");
+		Path src2 = _dir.resolve("src2.dcm");
+		Path dst2 = createFile(dstDir.resolve("dst2.dcm"));
+		Path tmp = createFile(dstDir.resolve("dst1.dcm123456789" + TMP_EXT));
+		Path other = createFile(dstDir.resolve("dst1.dcm.other" + TMP_EXT));
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			// interrupted while copying the first file
+			journal.begin(src1, dst1);
+			// interrupted after moving the second file
+			journal.begin(src2, dst2);
+		}
+
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			assertFalse(Files.exists(tmp));
+			assertTrue(Files.exists(other));
+			assertFalse(journal.isDone(src1));
+			assertTrue(journal.isInterrupted(src1));
+			assertTrue(journal.isDone(src2));
+			assertFalse(journal.isInterrupted(src2));
+		}
+		try (TidyJournal journal = TidyJournal.open(journalFile, TMP_EXT)) {
+			assertTrue(journal.isDone(src2));
+			assertEquals(1, journal.doneCount());
+		}
+	}
+
+	private static Path createFile(Path f) throws IOException {
+		return Files.write(f, new byte[] { 1, 2, 3 });
+	}
+
+	private static void delete(Path f) throws IOException {
+		if (Files.isDirectory(f)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(f)) {
+				for (Path c : stream) {
+					delete(c);
+				}
+			}
+		}
+		Files.delete(f);
+	}
+
+}